@@ -0,0 +1,232 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.interaction.ActionChain;
+import com.opera.core.systems.interaction.ActionChain.Step;
+import com.opera.core.systems.model.KeySequence;
+import com.opera.core.systems.scope.internal.OperaFlags;
+import com.opera.core.systems.scope.internal.OperaMouseKeys;
+import com.opera.core.systems.scope.protos.UmsProtos.Response;
+import com.opera.core.systems.scope.services.IOperaExec;
+
+import org.openqa.selenium.Point;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.internal.Locatable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Executes an {@link ActionChain}.
+ *
+ * The positions of all the elements in the chain are looked up with a single script before any
+ * input is sent, and the key and mouse actions are then sent back-to-back, waiting only for the
+ * last of them.  Elements outside of the viewport are scrolled into view when their turn comes, at
+ * the cost of waiting for the input sent so far and looking up the positions of the remaining
+ * elements again.  Clicks which are not plain mouse clicks, on options and on elements which are
+ * not displayed, are left to {@link OperaWebElement#click()}, as are interactions which could not
+ * be compiled.
+ */
+class ActionChainExecutor {
+
+  // Looks up the viewport position of each argument, scrolling the first one into view if it is out
+  // of it.  A position is "x,y,c", where c is 1 if a click must be done by the element, and is
+  // empty if the element is out of view.  The positions are joined by ';'.
+  private static final String POSITIONS_SCRIPT =
+      "var x = 0, y = 0;"
+      + "if (window.top !== window.self) {"
+      + "  x = (window.screenLeft - window.top.screenLeft) + window.scrollX;"
+      + "  y = (window.screenTop - window.top.screenTop) + window.scrollY;"
+      + "}"
+      + "function inView(el) {"
+      + "  var r = el.getBoundingClientRect();"
+      + "  return r.top >= 0 && r.left >= 0 && r.top < window.innerHeight"
+      + "      && r.left < window.innerWidth;"
+      + "}"
+      + "if (arguments.length && !inView(arguments[0])) arguments[0].scrollIntoView();"
+      + "var positions = [];"
+      + "for (var i = 0; i < arguments.length; i++) {"
+      + "  var el = arguments[i];"
+      + "  if (!inView(el)) { positions.push(''); continue; }"
+      + "  var r = el.getBoundingClientRect();"
+      + "  var parent = el.parentNode;"
+      + "  var special = /^option$/i.test(el.nodeName)"
+      + "      || (parent && /^select$/i.test(parent.nodeName) && parent.multiple) || %s;"
+      + "  positions.push((x + r.left) + ',' + (y + r.top) + ',' + (special ? 1 : 0));"
+      + "}"
+      + "return positions.join(';');";
+
+  private final OperaDriver driver;
+  private final IOperaExec exec;
+
+  private final List<Future<Response>> pending = new ArrayList<Future<Response>>();
+  private KeySequence keys = null;
+  private final Map<WebElement, String[]> positions = new HashMap<WebElement, String[]>();
+
+  public ActionChainExecutor(OperaDriver driver) {
+    this.driver = driver;
+    this.exec = driver.getExecService();
+  }
+
+  public void execute(ActionChain chain) {
+    List<Step> steps = chain.getSteps();
+    lookupPositions(chain.getElements(0));
+
+    for (int i = 0; i < steps.size(); i++) {
+      Step step = steps.get(i);
+
+      switch (step.getKind()) {
+        case KEY_DOWN:
+          keys().down(step.getKey());
+          break;
+        case KEY_UP:
+          keys().up(step.getKey());
+          break;
+        case KEY:
+          keys().press(step.getKey());
+          break;
+        case TYPE:
+          keys().type(step.getKey());
+          break;
+        case RELEASE_KEYS:
+          keys().releaseAll();
+          break;
+        case MOVE_TO:
+          mouse(chain, i, 0);
+          break;
+        case BUTTON_DOWN:
+          mouse(chain, i, 0, OperaMouseKeys.LEFT_DOWN);
+          break;
+        case BUTTON_UP:
+          mouse(chain, i, 0, OperaMouseKeys.LEFT_UP);
+          break;
+        case CLICK:
+          if (isSpecialClick(chain, i)) {
+            flush();
+            step.getElement().click();
+            // The page may have scrolled
+            lookupPositions(chain.getElements(i + 1));
+          } else {
+            // Clicks are made just inside the element, as OperaWebElement.click() does
+            mouse(chain, i, 1, OperaMouseKeys.LEFT);
+          }
+          break;
+        case INTERACTION:
+          flush();
+          step.getInteraction().execute(driver);
+          lookupPositions(chain.getElements(i + 1));
+          break;
+      }
+    }
+
+    flush();
+  }
+
+  /**
+   * @return the key sequence being built, which is started from the keys currently held down
+   */
+  private KeySequence keys() {
+    if (keys == null) {
+      keys = exec.keySequence();
+    }
+    return keys;
+  }
+
+  private void sendKeys() {
+    if (keys != null) {
+      pending.addAll(exec.keysAsync(keys));
+      keys = null;
+    }
+  }
+
+  /**
+   * Sends the keys typed so far, and waits for all the input sent to be executed.
+   */
+  private void flush() {
+    sendKeys();
+    if (!pending.isEmpty()) {
+      exec.waitForInput(pending);
+      pending.clear();
+    }
+  }
+
+  private void mouse(ActionChain chain, int index, int offset, OperaMouseKeys... buttons) {
+    sendKeys();
+    Point point = getPosition(chain, index);
+    pending.add(exec.mouseActionAsync(point.x + offset, point.y + offset, buttons));
+  }
+
+  private boolean isSpecialClick(ActionChain chain, int index) {
+    String[] position = getPositionParts(chain, index);
+    return position == null || position[2].equals("1");
+  }
+
+  private Point getPosition(ActionChain chain, int index) {
+    String[] position = getPositionParts(chain, index);
+    if (position == null) {
+      // Still out of view, so leave it to the element
+      return ((Locatable) chain.getSteps().get(index).getElement()).getCoordinates()
+          .getLocationInViewPort();
+    }
+    return new Point((int) Double.parseDouble(position[0]), (int) Double.parseDouble(position[1]));
+  }
+
+  /**
+   * Gets the position of the element of a step.  If the element is out of view the input sent so
+   * far is waited for, and the positions of the elements of this and the following steps are
+   * looked up again, with this element scrolled into view.
+   *
+   * @return the parts of the position, or <code>null</code> if the element is still out of view
+   */
+  private String[] getPositionParts(ActionChain chain, int index) {
+    WebElement element = chain.getSteps().get(index).getElement();
+    String[] position = positions.get(element);
+
+    if (position == null) {
+      flush();
+      lookupPositions(chain.getElements(index));
+      position = positions.get(element);
+    }
+
+    return position;
+  }
+
+  private void lookupPositions(List<WebElement> elements) {
+    positions.clear();
+    if (elements.isEmpty()) {
+      return;
+    }
+
+    String displayed = OperaFlags.ENABLE_CHECKS
+                       ? "!" + driver.getScriptDebugger().getAtom(OperaAtoms.IS_DISPLAYED) + "(el)"
+                       : "false";
+    String reply = (String) driver.executeScript(String.format(POSITIONS_SCRIPT, displayed),
+                                                 elements.toArray());
+
+    String[] parts = reply.split(";", -1);
+    for (int i = 0; i < elements.size() && i < parts.length; i++) {
+      if (parts[i].length() > 0) {
+        positions.put(elements.get(i), parts[i].split(","));
+      }
+    }
+  }
+
+}
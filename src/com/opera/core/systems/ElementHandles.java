@@ -0,0 +1,197 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.services.IEcmaScriptDebugger;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the Ecmascript objects referenced by {@link OperaWebElement}s, and releases them
+ * in Opera once no element refers to them any more.
+ *
+ * Elements are tracked with phantom references instead of finalizers, so the garbage collector
+ * never has to run driver code.  Collected elements are noticed each time an element is
+ * registered and before each script run by the debugger's script executor, and their objects are
+ * handed to the debugger for release, which sends them in one batch ahead of that script.  Several
+ * elements may refer to the same object, which is only released when the last of them is
+ * collected.
+ *
+ * Objects are never released while an element still refers to them.  When more objects than the
+ * expected capacity are tracked a warning is logged, as that usually means the elements are kept
+ * around by the test.
+ */
+public class ElementHandles {
+
+  public static final int DEFAULT_CAPACITY = 10000;
+
+  private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private final IEcmaScriptDebugger debugger;
+  private final int capacity;
+  // Whether the capacity has been exceeded since the last warning
+  private boolean overCapacity = false;
+
+  private final ReferenceQueue<OperaWebElement> queue = new ReferenceQueue<OperaWebElement>();
+  // The objects tracked, oldest first
+  private final LinkedHashMap<Integer, Handle> handles = new LinkedHashMap<Integer, Handle>();
+  // Keeps the references reachable until they are enqueued
+  private final Set<ElementReference> references = new HashSet<ElementReference>();
+
+  public ElementHandles(IEcmaScriptDebugger debugger) {
+    this(debugger, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param debugger the debugger to release the objects with
+   * @param capacity the number of objects to track at once above which a warning is logged
+   */
+  public ElementHandles(IEcmaScriptDebugger debugger, int capacity) {
+    this.debugger = debugger;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Starts tracking the object of an element.  Objects of elements collected since the last call
+   * are released first.
+   *
+   * @param element   the element referring to the object
+   * @param objectId  the id of the object
+   * @param runtimeId the runtime the object lives in
+   */
+  public synchronized void register(OperaWebElement element, int objectId, int runtimeId) {
+    expunge();
+
+    Handle handle = handles.get(objectId);
+    if (handle == null) {
+      handle = new Handle(objectId, runtimeId);
+      handles.put(objectId, handle);
+
+      if (handles.size() > capacity && !overCapacity) {
+        overCapacity = true;
+        logger.warning("More than " + capacity + " element objects are referred to at once, " +
+                       "they are kept alive in Opera until their elements are collected");
+      }
+    }
+
+    handle.elements++;
+    references.add(new ElementReference(element, handle, queue));
+  }
+
+  /**
+   * @param objectId the id of the object
+   * @return whether the object is still tracked, so that it has not been released
+   */
+  public synchronized boolean isLive(int objectId) {
+    return handles.containsKey(objectId);
+  }
+
+  /**
+   * @return the number of objects tracked
+   */
+  public synchronized int size() {
+    return handles.size();
+  }
+
+  /**
+   * @return the number of objects tracked by runtime id
+   */
+  public synchronized Map<Integer, Integer> getCountsByRuntime() {
+    Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (Handle handle : handles.values()) {
+      Integer count = counts.get(handle.runtimeId);
+      counts.put(handle.runtimeId, (count == null) ? 1 : count + 1);
+    }
+    return counts;
+  }
+
+  /**
+   * Releases the objects whose elements have all been collected since the last call.
+   */
+  public synchronized void releaseCollected() {
+    expunge();
+  }
+
+  /**
+   * Stops tracking all objects, without releasing them one by one.  Used before all objects are
+   * released at once.
+   */
+  public synchronized void clear() {
+    while (queue.poll() != null) {
+      // The objects of collected elements are released with all the others
+    }
+    handles.clear();
+    references.clear();
+    overCapacity = false;
+  }
+
+  /**
+   * Releases the objects whose elements have all been collected.
+   */
+  private void expunge() {
+    Reference<? extends OperaWebElement> reference;
+    while ((reference = queue.poll()) != null) {
+      ElementReference element = (ElementReference) reference;
+      references.remove(element);
+
+      Handle handle = element.handle;
+      // The objects may have been cleared meanwhile
+      if (handles.get(handle.objectId) == handle && --handle.elements == 0) {
+        handles.remove(handle.objectId);
+        debugger.releaseObject(handle.objectId);
+      }
+    }
+
+    if (handles.size() <= capacity) {
+      overCapacity = false;
+    }
+  }
+
+  private static class Handle {
+
+    private final int objectId;
+    private final int runtimeId;
+    private int elements = 0;
+
+    public Handle(int objectId, int runtimeId) {
+      this.objectId = objectId;
+      this.runtimeId = runtimeId;
+    }
+
+  }
+
+  private static class ElementReference extends PhantomReference<OperaWebElement> {
+
+    private final Handle handle;
+
+    public ElementReference(OperaWebElement element, Handle handle,
+                            ReferenceQueue<OperaWebElement> queue) {
+      super(element, queue);
+      this.handle = handle;
+    }
+
+  }
+
+}
@@ -122,6 +122,7 @@ public class EventHandler extends AbstractEventHandler {
   @Override
   public void onReadyStateChange(ReadyStateChange change) {
     services.getDebugger().readyStateChanged(change);
+    services.onReadyStateChanged(change);
   }
 
   @Override
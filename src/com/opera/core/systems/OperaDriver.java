@@ -19,8 +19,8 @@ package com.opera.core.systems;
 import com.google.common.base.Charsets;
 import com.google.common.io.Resources;
 
+import com.opera.core.systems.interaction.ActionChain;
 import com.opera.core.systems.interaction.OperaAction;
-import com.opera.core.systems.interaction.UserInteraction;
 import com.opera.core.systems.model.ScopeActions;
 import com.opera.core.systems.model.ScreenShotReply;
 import com.opera.core.systems.model.ScriptResult;
@@ -46,6 +46,7 @@ import org.openqa.selenium.Alert;
 import org.openqa.selenium.By;
 import org.openqa.selenium.Capabilities;
 import org.openqa.selenium.Cookie;
+import org.openqa.selenium.Dimension;
 import org.openqa.selenium.InvalidSelectorException;
 import org.openqa.selenium.Keyboard;
 import org.openqa.selenium.Mouse;
@@ -53,8 +54,10 @@ import org.openqa.selenium.NoSuchElementException;
 import org.openqa.selenium.NoSuchFrameException;
 import org.openqa.selenium.NoSuchWindowException;
 import org.openqa.selenium.OutputType;
+import org.openqa.selenium.Point;
 import org.openqa.selenium.StaleElementReferenceException;
 import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.TimeoutException;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
@@ -66,11 +69,12 @@ import org.openqa.selenium.remote.RemoteWebDriver;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -179,11 +183,30 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
    */
   public static final String GUESS_BINARY_PATH = "opera.guess_binary_path";
 
+  /**
+   * (Boolean) Whether to serve the connection to Opera from a small pool of threads shared by all
+   * OperaDriver instances in the JVM, instead of from a thread of its own.  Useful when running
+   * many drivers in one process.  It is disabled by default.
+   */
+  public static final String SHARED_MONITOR = "opera.shared_monitor";
+
   /**
    * (String) The profile configuration we are using, for example "desktop" or "core-gogi".
    */
   public static final String PRODUCT = "opera.product";
 
+  /**
+   * (Integer) The number of kilobytes of screenshots to keep in memory, so that Opera does not have
+   * to send the same screenshot twice.  Default is 16384.
+   */
+  public static final String SCREENSHOT_CACHE_SIZE = "opera.screenshot_cache_size";
+
+  /**
+   * (Integer) The number of kilobytes of screenshots to write to a temporary directory once they no
+   * longer fit in memory.  0 = Drop them instead.  Default is 0.
+   */
+  public static final String SCREENSHOT_DISK_CACHE_SIZE = "opera.screenshot_disk_cache_size";
+
   /*
    * These are "protected" and not "private" so that we can extend this class
    * and add methods to access these variable in tests.
@@ -204,10 +227,32 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   protected final Logger logger = Logger.getLogger(this.getClass().getName());
   private FileHandler logFile = null;
 
-  protected Set<Integer> objectIds = new HashSet<Integer>();
+  protected ElementHandles elementHandles;
+  protected ScreenshotCache screenshotCache;
   private String version;
 
   private int assignedWindowIds = 0;
+  private int asyncScriptCount = 0;
+  private int elementSignalCount = 0;
+
+  // Returned by element lookups instead of the element(s), to report an error in the same reply
+  private static final String INVALID_SELECTOR = "invalid selector: ";
+  private static final String STALE_ELEMENT = "stale element";
+
+  // The area of screenshots of the whole screen in the screenshot cache
+  private static final String SCREEN = "screen";
+
+  // The page object keeping the values passed to the callbacks of async scripts, by script
+  private static final String ASYNC_RESULTS = "__webdriverAsyncResults";
+
+  // The prefix of the ids of the signals sent by the callbacks of async scripts
+  private static final String ASYNC_SIGNAL = "async-";
+
+  // The prefix of the ids of the signals sent when elements waited for appear
+  private static final String ELEMENT_SIGNAL = "element-";
+
+  // The page property naming the latest element watcher, so that the earlier ones stop
+  private static final String ELEMENT_WATCHER = "__webdriverElementWatcher";
 
   /**
    * Constructor that starts Opera with the default set of capabilities.
@@ -335,6 +380,11 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
 
     capabilities.setCapability(OPERAIDLE, false);
 
+    capabilities.setCapability(SHARED_MONITOR, false);
+
+    capabilities.setCapability(SCREENSHOT_CACHE_SIZE, ScreenshotCache.DEFAULT_MEMORY_SIZE / 1024);
+    capabilities.setCapability(SCREENSHOT_DISK_CACHE_SIZE, 0);
+
     return capabilities;
   }
 
@@ -369,6 +419,11 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     services.init();
     debugger = services.getDebugger();
     debugger.setDriver(this);
+    elementHandles = new ElementHandles(debugger);
+    debugger.setElementHandles(elementHandles);
+    screenshotCache = new ScreenshotCache(
+        1024L * (Integer) capabilities.getCapability(SCREENSHOT_CACHE_SIZE),
+        1024L * (Integer) capabilities.getCapability(SCREENSHOT_DISK_CACHE_SIZE));
 
     windowManager = services.getWindowManager();
     exec = services.getExec();
@@ -410,7 +465,9 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
       if (port == -1) {
         port = 7001;
       }
-      services = new ScopeServices(versions, port, manualStart);
+      boolean sharedMonitor = (Boolean) capabilities.getCapability(SHARED_MONITOR);
+
+      services = new ScopeServices(versions, port, manualStart, sharedMonitor);
       // for profile-specific workarounds inside ScopeServives, WaitState ...
       services.setProduct((String) capabilities.getCapability(PRODUCT));
       services.startStpThread();
@@ -436,6 +493,9 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     if (operaRunner != null) {
       operaRunner.shutdown();
     }
+    if (screenshotCache != null) {
+      screenshotCache.clear();
+    }
     if (logFile != null) {
       logFile.close();
     }
@@ -501,8 +561,15 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   }
 
   private void gc() {
+    elementHandles.clear();
     debugger.releaseObjects();
-    objectIds.clear();
+  }
+
+  /**
+   * @return the number of Ecmascript objects held in Opera for elements, by runtime id
+   */
+  public Map<Integer, Integer> getElementHandleCounts() {
+    return elementHandles.getCountsByRuntime();
   }
 
   public void close() {
@@ -536,59 +603,14 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
 
     using = escapeJsString(using);
 
-    long start = System.currentTimeMillis();
-    boolean isAvailable;
-    Integer id;
-
-    String script;
-    if (el == null) {
-      // Search the document
-      script =
-          "return " + OperaAtoms.FIND_ELEMENT.getValue() + "({\"" + by + "\": \"" + using + "\"})";
-    } else {
+    String arguments = "{\"" + by + "\": \"" + using + "\"}";
+    if (el != null) {
       // Search within an element
-      script =
-          "return " + OperaAtoms.FIND_ELEMENT.getValue() + "({\"" + by + "\": \"" + using
-          + "\"}, locator)";
+      arguments += ", locator";
     }
 
-    do {
-      if (el == null) {
-        id = debugger.getObject(script);
-      } else {
-        id = debugger.executeScriptOnObject(script, el.getObjectId());
-      }
-
-      isAvailable = (id != null);
-
-      if (!isAvailable) {
-        sleep(OperaIntervals.EXEC_SLEEP.getValue());
-      }
-    } while (!isAvailable && hasTimeRemaining(start));
-
-    OperaIntervals.WAIT_FOR_ELEMENT.setValue(0L);
-
-    if (isAvailable) {
-      String
-          error =
-          debugger
-              .callFunctionOnObject("return (locator instanceof Error) ? locator.message : ''", id);
-      if (!error.isEmpty()) {
-        throw new InvalidSelectorException(error);
-      }
-
-      Boolean
-          isStale =
-          Boolean.valueOf(debugger.callFunctionOnObject("locator.parentNode == undefined", id));
-
-      if (isStale) {
-        throw new StaleElementReferenceException("This element is no longer part of DOM");
-      }
-
-      return new OperaWebElement(this, id);
-    } else {
-      throw new NoSuchElementException("Cannot find element(s) with " + by);
-    }
+    // The page may be replaced while waiting, so the atom is looked up on every try
+    return findSingleElement(OperaAtoms.FIND_ELEMENT, arguments, el, by);
   }
 
   public List<WebElement> findElements(By by) {
@@ -606,61 +628,14 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
 
     using = escapeJsString(using);
 
-    Integer id;
-
-    long start = System.currentTimeMillis();
-    int count = 0;
-
-    List<WebElement> elements;
-
-    String script;
-    if (el == null) {
-      // Search in document
-      script =
-          "return " + OperaAtoms.FIND_ELEMENTS.getValue() + "({\"" + by + "\": \"" + using + "\"})";
-    } else {
+    String arguments = "{\"" + by + "\": \"" + using + "\"}";
+    if (el != null) {
       // Search within an element
-      script =
-          "return " + OperaAtoms.FIND_ELEMENTS.getValue() + "({\"" + by + "\": \"" + using
-          + "\"}, locator)";
+      arguments += ", locator";
     }
 
-    do {
-      if (el == null) {
-        id = debugger.getObject(script);
-      } else {
-        id = debugger.executeScriptOnObject(script, el.getObjectId());
-      }
-
-      String
-          error =
-          debugger
-              .callFunctionOnObject("return (locator instanceof Error) ? locator.message : ''", id);
-      if (!error.isEmpty()) {
-        throw new InvalidSelectorException(error);
-      }
-
-      elements = processElements(id);
-
-      if (elements != null) {
-        count = elements.size();
-      }
-
-      if (count == 0 && hasTimeRemaining(start)) {
-        sleep(OperaIntervals.EXEC_SLEEP.getValue());
-      } else {
-        break;
-      }
-
-    } while (true);
-
-    OperaIntervals.WAIT_FOR_ELEMENT.setValue(0L);
-
-    if (id != null) {
-      return elements;
-    } else {
-      throw new NoSuchElementException("Cannot find element(s) with " + by);
-    }
+    // The page may be replaced while waiting, so the atom is looked up on every try
+    return findMultipleElements(OperaAtoms.FIND_ELEMENTS, arguments, el, by);
   }
 
   /**
@@ -805,7 +780,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
 
     // TODO: Implement need to find a way to link an element to a runtime
     public WebDriver frame(WebElement frameElement) {
-      String script = "return " + OperaAtoms.GET_FRAME_INDEX.getValue() + "(locator)";
+      String script = "return " + debugger.getAtom(OperaAtoms.GET_FRAME_INDEX) + "(locator)";
       Long frameIndex = (Long) debugger.callFunctionOnObject(script, ((OperaWebElement) frameElement).getObjectId(), true);
 
       if (frameIndex == null) {
@@ -881,7 +856,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   }
 
   private WebElement findActiveElement() {
-    return findSingleElement("document.activeElement;", "active element");
+    return findSingleElement("document.activeElement", "active element");
   }
 
   protected List<WebElement> processElements(Integer id) {
@@ -898,6 +873,12 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     if (useOperaIdle()) {
       // new opera wait for page
       services.waitForOperaIdle(OperaIntervals.PAGE_LOAD_TIMEOUT.getValue());
+    } else if (services.isReadyStateAvailable()) {
+      // Sometimes we get here before the next page has even *started* loading, so give it a moment
+      if (!services.waitForPageLoad(OperaIntervals.PAGE_LOAD_START.getValue(),
+                                    OperaIntervals.PAGE_LOAD_TIMEOUT.getValue())) {
+        throw new WebDriverException("Timeout while loading page");
+      }
     } else {
 
       /*
@@ -906,7 +887,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
        * sure readyState has been set to "loading".
        */
       try {
-        Thread.sleep(5);
+        Thread.sleep(OperaIntervals.PAGE_LOAD_START.getValue());
       } catch (InterruptedException e) {
         Thread.currentThread().interrupt();
       }
@@ -925,13 +906,13 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
 
   public WebElement findElementByName(String using) {
     return findSingleElement(
-        "document.getElementsByName('" + escapeJsString(using, "'") + "')[0];", "name"
+        "document.getElementsByName('" + escapeJsString(using, "'") + "')[0]", "name"
     );
   }
 
   public List<WebElement> findElementsByName(String using) {
     return findMultipleElements(
-        "document.getElementsByName('" + escapeJsString(using, "'") + "');", "name"
+        "document.getElementsByName('" + escapeJsString(using, "'") + "')", "name"
     );
   }
 
@@ -1108,69 +1089,295 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   }
 
   private List<WebElement> findMultipleElements(String script, String type) {
-    Integer id;
+    return findMultipleElements(null, script, null, type);
+  }
 
-    long start = System.currentTimeMillis();
-    int count = 0;
+  private WebElement findSingleElement(String script, String type) {
+    return findSingleElement(null, script, null, type);
+  }
 
+  /**
+   * Finds elements, waiting for them to appear.  Each try is a single eval, which tells whether the
+   * selector is invalid and how many elements were found along with the elements.
+   *
+   * @param atom      the atom to call with the arguments, or <code>null</code> if the arguments are
+   *                  the expression finding the elements
+   * @param arguments the arguments to the atom, or the expression finding the elements
+   * @param el        the element passed to the script as "locator", or <code>null</code>
+   * @param type      how the elements are found, for the error message
+   * @see #lookupElements(OperaAtoms, String, OperaWebElement, boolean, String)
+   */
+  private List<WebElement> findMultipleElements(OperaAtoms atom, String arguments,
+                                                OperaWebElement el, String type) {
+    long start = System.currentTimeMillis();
+    int tries = 0;
     List<WebElement> elements;
+    boolean signalled = startElementSignals(start);
 
-    do {
-      id = debugger.getObject(script);
-      elements = processElements(id);
+    try {
+      do {
+        String signal = expectElementSignal(start, signalled);
+        Object result = lookupElements(atom, arguments, el, false, signal);
+        tries++;
+
+        if (result instanceof ScriptResult) {
+          elements = processElements(((ScriptResult) result).getObjectId());
+        } else if (result != null) {
+          // None found
+          elements = new ArrayList<WebElement>();
+        } else {
+          elements = null;
+        }
 
-      if (elements != null) {
-        count = elements.size();
-      }
+        if ((elements == null || elements.isEmpty()) && hasTimeRemaining(start)) {
+          waitBeforeRetry(start, tries, signal);
+        } else {
+          cancelElementSignal(signal);
+          break;
+        }
 
-      if (count == 0 && hasTimeRemaining(start)) {
-        sleep(OperaIntervals.EXEC_SLEEP.getValue());
-      } else {
-        break;
+      } while (true);
+    } finally {
+      if (signalled) {
+        services.stopScriptSignals();
       }
-
-    } while (true);
+    }
 
     OperaIntervals.WAIT_FOR_ELEMENT.setValue(0L);
 
-    if (id != null) {
+    if (elements != null) {
       return elements;
     } else {
       throw new NoSuchElementException("Cannot find element(s) with " + type);
     }
   }
 
-  private WebElement findSingleElement(String script, String type) {
+  /**
+   * Finds an element, waiting for it to appear.  Each try is a single eval, which tells whether the
+   * selector is invalid or the element is stale along with the element.
+   *
+   * @param atom      the atom to call with the arguments, or <code>null</code> if the arguments are
+   *                  the expression finding the element
+   * @param arguments the arguments to the atom, or the expression finding the element
+   * @param el        the element passed to the script as "locator", or <code>null</code>
+   * @param type      how the element is found, for the error message
+   * @see #lookupElements(OperaAtoms, String, OperaWebElement, boolean, String)
+   */
+  private WebElement findSingleElement(OperaAtoms atom, String arguments, OperaWebElement el,
+                                       String type) {
     long start = System.currentTimeMillis();
+    int tries = 0;
     boolean isAvailable;
-    Integer id;
-
-    do {
-      id = debugger.getObject(script);
-      isAvailable = (id != null);
+    Object result;
+    boolean signalled = startElementSignals(start);
 
-      if (!isAvailable) {
-        sleep(OperaIntervals.EXEC_SLEEP.getValue());
+    try {
+      do {
+        String signal = expectElementSignal(start, signalled);
+        result = lookupElements(atom, arguments, el, true, signal);
+        tries++;
+        isAvailable = (result instanceof ScriptResult);
+
+        if (isAvailable || !hasTimeRemaining(start)) {
+          cancelElementSignal(signal);
+          break;
+        }
+        waitBeforeRetry(start, tries, signal);
+      } while (true);
+    } finally {
+      if (signalled) {
+        services.stopScriptSignals();
       }
-    } while (!isAvailable && hasTimeRemaining(start));
+    }
 
     OperaIntervals.WAIT_FOR_ELEMENT.setValue(0L);
 
     if (isAvailable) {
-      Boolean
-          isStale =
-          Boolean.valueOf(debugger.callFunctionOnObject("locator.parentNode == undefined", id));
+      return new OperaWebElement(this, ((ScriptResult) result).getObjectId());
+    } else {
+      throw new NoSuchElementException("Cannot find element(s) with " + type);
+    }
+  }
 
-      if (isStale) {
+  /**
+   * Runs the expression finding one or more elements, and checks its status in the same eval.  An
+   * invalid selector or a stale element is reported as a string, and an empty list of elements as
+   * 0, so neither needs another round trip to be told apart.
+   *
+   * If nothing is found and a signal is given, the same eval leaves a watcher in the page which
+   * runs the expression again each time the document changes, or every {@link
+   * OperaIntervals#POLL_INVERVAL} where mutation observers are not supported, and sends the signal
+   * once something is found.  The watcher stops by itself at the end of the implicit wait, or once
+   * a later lookup has left another watcher in the page.
+   *
+   * @param signal the id of the signal to send when something is found later, or
+   *               <code>null</code> not to watch the page
+   * @return a {@link ScriptResult} for the element(s) found, 0 if the list found is empty, or
+   *         <code>null</code> if nothing was found
+   * @throws InvalidSelectorException if the selector is invalid
+   * @throws StaleElementReferenceException if the element found is no longer in the DOM
+   */
+  private Object lookupElements(OperaAtoms atom, String arguments, OperaWebElement el,
+                                boolean single, String signal) {
+    String expression = (atom == null) ? arguments
+                                       : debugger.getAtom(atom) + "(" + arguments + ")";
+    String present = "f && !(f instanceof Error)" + (single ? "" : " && f.length !== 0");
+
+    String script = "var find = function() { return " + expression + "; };"
+                    + "var found = find();"
+                    + "if (found instanceof Error) return '" + INVALID_SELECTOR
+                    + "' + found.message;"
+                    + (single ? "if (found && found.parentNode == undefined) return '"
+                                + STALE_ELEMENT + "';"
+                              : "");
+
+    if (signal != null) {
+      long remaining = Math.max(OperaIntervals.WAIT_FOR_ELEMENT.getValue(), 0);
+      script += "if (!(function(f) { return " + present + "; })(found)) (function() {"
+                + "  var end = new Date().getTime() + " + remaining + ";"
+                + "  var observer = null, timer = null;"
+                + "  var stop = function() {"
+                + "    if (observer) observer.disconnect();"
+                + "    clearTimeout(timer); clearInterval(timer);"
+                + "  };"
+                + "  window." + ELEMENT_WATCHER + " = '" + signal + "';"
+                + "  var check = function() {"
+                + "    if (window." + ELEMENT_WATCHER + " !== '" + signal + "') return stop();"
+                + "    var f = null;"
+                + "    try { f = find(); } catch (e) {}"
+                + "    if (" + present + ") {"
+                + "      stop(); " + scriptSignal("'" + signal + "'") + ";"
+                + "    } else if (new Date().getTime() >= end) {"
+                + "      stop();"
+                + "    }"
+                + "  };"
+                + "  if (window.MutationObserver) {"
+                + "    observer = new MutationObserver(check);"
+                + "    observer.observe(document, {childList: true, subtree: true,"
+                + "                                attributes: true, characterData: true});"
+                + "    timer = setTimeout(stop, " + remaining + ");"
+                + "  } else {"
+                + "    timer = setInterval(check, " + OperaIntervals.POLL_INVERVAL.getValue() + ");"
+                + "  }"
+                + "})();";
+    }
+
+    script += (single ? "" : "if (found && found.length === 0) return 0;")
+              + "return found;";
+
+    Object result = debugger.executeScriptForResult(script, (el == null) ? null : el.getObjectId());
+
+    if (result instanceof String) {
+      String status = (String) result;
+      if (status.startsWith(INVALID_SELECTOR)) {
+        throw new InvalidSelectorException(status.substring(INVALID_SELECTOR.length()));
+      } else if (status.equals(STALE_ELEMENT)) {
         throw new StaleElementReferenceException("This element is no longer part of DOM");
       }
+      return null;
+    }
+
+    return result;
+  }
+
+  /**
+   * Starts the script signals for a lookup, if there is time to wait for the elements and the page
+   * can signal the driver.
+   *
+   * @param start the time the lookup started
+   * @return whether the signals were started, and must be stopped at the end of the lookup
+   */
+  private boolean startElementSignals(long start) {
+    if (!hasTimeRemaining(start) || !services.isScriptSignalAvailable()) {
+      return false;
+    }
+
+    services.startScriptSignals();
+    return true;
+  }
+
+  /**
+   * Registers the signal to be sent by the page when elements appear, if there is time left to
+   * wait for them.
+   *
+   * @param start     the time the lookup started
+   * @param signalled whether script signals were started for the lookup
+   * @return the id of the signal, or <code>null</code> if the page is not to be watched
+   */
+  private String expectElementSignal(long start, boolean signalled) {
+    if (!signalled || !hasTimeRemaining(start)) {
+      return null;
+    }
+
+    String signal = ELEMENT_SIGNAL + (++elementSignalCount);
+    services.expectScriptSignal(signal);
+    return signal;
+  }
 
-      return new OperaWebElement(this, id);
+  private void cancelElementSignal(String signal) {
+    if (signal != null) {
+      services.cancelScriptSignal(signal);
+    }
+  }
+
+  /**
+   * Waits before trying an element lookup again.  If the last try left a watcher in the page, this
+   * waits for its signal without sending anything to Opera, so the next try finds the elements
+   * straight away.  The page or frame may be replaced meanwhile, taking the watcher with it, so
+   * the signal is waited for at most {@link OperaIntervals#ELEMENT_SIGNAL_WAIT} before the next
+   * try, which leaves a new watcher.  Without a watcher this sleeps as {@link
+   * #sleepBeforeRetry(long, int)} does.
+   *
+   * @param start  the time the lookup started
+   * @param tries  the number of tries made so far
+   * @param signal the id of the signal the watcher sends, or <code>null</code>
+   */
+  private void waitBeforeRetry(long start, int tries, String signal) {
+    if (signal == null) {
+      sleepBeforeRetry(start, tries);
     } else {
-      throw new NoSuchElementException("Cannot find element(s) with " + type);
+      long remaining = start + OperaIntervals.WAIT_FOR_ELEMENT.getValue()
+                       - System.currentTimeMillis();
+      services.waitForScriptSignal(signal, Math.min(remaining,
+                                                    OperaIntervals.ELEMENT_SIGNAL_WAIT.getValue()));
     }
   }
 
+  /**
+   * Returns a script statement which signals the driver through the console, to be waited for
+   * with {@link ScopeServices#waitForScriptSignal(String, long)}.
+   *
+   * @param id a script expression giving the id of the signal
+   */
+  private static String scriptSignal(String id) {
+    return "console.log('" + ScopeServices.SCRIPT_SIGNAL + "' + " + id + ")";
+  }
+
+  /**
+   * Sleeps before trying an element lookup again.  The first retries follow quickly, so an element
+   * added just after the first try is found without waiting a full interval, then the retries back
+   * off to {@link OperaIntervals#EXEC_SLEEP}.  The sleep never goes past the implicit wait, so the
+   * last try is made right at its end.
+   *
+   * @param start the time the lookup started
+   * @param tries the number of tries made so far
+   */
+  private void sleepBeforeRetry(long start, int tries) {
+    sleepBeforeRetry(start, OperaIntervals.WAIT_FOR_ELEMENT.getValue(), tries);
+  }
+
+  /**
+   * @param start the time the wait started
+   * @param wait  how long to wait in total
+   * @param tries the number of tries made so far
+   */
+  private static void sleepBeforeRetry(long start, long wait, int tries) {
+    long interval = Math.min(OperaIntervals.EXEC_SLEEP.getValue(),
+                             OperaIntervals.EXEC_MIN_SLEEP.getValue() << Math.min(tries - 1, 16));
+    long remaining = start + wait - System.currentTimeMillis();
+    sleep(Math.max(Math.min(interval, remaining), 0));
+  }
+
   boolean hasTimeRemaining(long start) {
     return System.currentTimeMillis() - start < OperaIntervals.WAIT_FOR_ELEMENT.getValue();
   }
@@ -1180,11 +1387,16 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
    *
    * @param timeout the number of milliseconds to wait before taking the screenshot
    * @param hashes  A previous screenshot MD5 hash.  If it matches the hash of this screenshot then
-   *                no image data is returned.
+   *                no image data is returned.  Screenshots taken earlier in the session are served
+   *                from the screenshot cache instead of being sent again.
    * @return a ScreenShotReply object
    */
-  public ScreenShotReply saveScreenshot(long timeout, String... hashes) {
-    return operaRunner.saveScreenshot(timeout, hashes);
+  public ScreenShotReply saveScreenshot(final long timeout, String... hashes) {
+    return screenshotCache.take(SCREEN, new ScreenshotCache.Source() {
+      public ScreenShotReply take(String... known) {
+        return operaRunner.saveScreenshot(timeout, known);
+      }
+    }, hashes);
   }
 
   // FIXME: CORE-39436 areas outside of the current viewport are black. This is
@@ -1232,6 +1444,122 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     return object;
   }
 
+  /**
+   * Reads properties of many elements in a single eval, instead of one round trip per element and
+   * property.  The elements must all be in the current frame.
+   *
+   * The properties that can be read are "text", "tagName", "displayed", "enabled", "selected",
+   * "location" and "size", with the same values as the {@link WebElement} methods of the same
+   * names.  Any other name is read as an attribute, as {@link WebElement#getAttribute(String)}
+   * does.
+   *
+   * @param elements   the elements to read
+   * @param properties the properties to read of each element
+   * @return one map per element, in the order given, from property name to value: a String for
+   *         text, tag name and attributes (<code>null</code> for a missing attribute), a Boolean
+   *         for displayed, enabled and selected, a {@link Point} for location and a {@link
+   *         Dimension} for size
+   */
+  public List<Map<String, Object>> readProperties(List<WebElement> elements,
+                                                  String... properties) {
+    List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+    if (elements.isEmpty() || properties.length == 0) {
+      for (int i = 0; i < elements.size(); i++) {
+        result.add(new HashMap<String, Object>());
+      }
+      return result;
+    }
+
+    // Every value is returned as a string with a one letter type prefix, all joined by '|', so that
+    // the reply is a single string
+    StringBuilder script = new StringBuilder();
+    script.append("function s(v) { return v == null ? 'n' : 's' + encodeURIComponent(v); }")
+        .append("function b(v) { return v ? 'b1' : 'b0'; }")
+        .append("var elements = arguments[0], values = [];")
+        .append("for (var i = 0; i < elements.length; i++) {")
+        .append("  var locator = elements[i], c;");
+
+    for (String property : properties) {
+      script.append("values.push(").append(readPropertyScript(property)).append(");");
+    }
+
+    script.append("}").append("return values.join('|');");
+
+    String reply = (String) debugger.scriptExecutor(script.toString(), elements);
+    String[] values = reply.split("\\|", -1);
+    if (values.length != elements.size() * properties.length) {
+      throw new WebDriverException("Unexpected number of properties read: " + values.length);
+    }
+
+    int index = 0;
+    for (int i = 0; i < elements.size(); i++) {
+      Map<String, Object> element = new HashMap<String, Object>();
+      for (String property : properties) {
+        element.put(property, parsePropertyValue(values[index++]));
+      }
+      result.add(element);
+    }
+
+    return result;
+  }
+
+  private String readPropertyScript(String property) {
+    if (property.equals("text")) {
+      return "s(" + debugger.getAtom(OperaAtoms.GET_TEXT) + "(locator))";
+    } else if (property.equals("tagName")) {
+      return "s(locator.tagName)";
+    } else if (property.equals("displayed")) {
+      return "b(" + debugger.getAtom(OperaAtoms.IS_DISPLAYED) + "(locator))";
+    } else if (property.equals("enabled")) {
+      return "b(" + debugger.getAtom(OperaAtoms.IS_ENABLED) + "(locator))";
+    } else if (property.equals("selected")) {
+      return "b(" + debugger.getAtom(OperaAtoms.IS_SELECTED) + "(locator))";
+    } else if (property.equals("location")) {
+      // Same fallback as OperaWebElement.getLocation() for SVG documents
+      return "(c = " + debugger.getAtom(OperaAtoms.GET_LOCATION) + "(locator),"
+             + " c && c.x != undefined)"
+             + " ? 'p' + c.x + ',' + c.y"
+             + " : (c = locator.getBoundingClientRect(),"
+             + " 'p' + (c.left - window.pageXOffset) + ',' + (c.top - window.pageYOffset))";
+    } else if (property.equals("size")) {
+      return "(c = " + debugger.getAtom(OperaAtoms.GET_SIZE) + "(locator),"
+             + " 'd' + c.width + ',' + c.height)";
+    } else if (property.toLowerCase().equals("value")) {
+      return "s(/^input|select|option|textarea$/i.test(locator.nodeName)"
+             + " ? locator.value : locator.textContent)";
+    } else {
+      return "s(" + debugger.getAtom(OperaAtoms.GET_ATTRIBUTE) + "(locator, '"
+             + escapeJsString(property, "'") + "'))";
+    }
+  }
+
+  private Object parsePropertyValue(String value) {
+    char type = value.charAt(0);
+    String data = value.substring(1);
+
+    switch (type) {
+      case 's':
+        try {
+          return URLDecoder.decode(data, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          throw new WebDriverException(e);
+        }
+      case 'b':
+        return data.equals("1");
+      case 'p':
+        String[] location = data.split(",");
+        return new Point(Double.valueOf(location[0]).intValue(),
+                         Double.valueOf(location[1]).intValue());
+      case 'd':
+        String[] size = data.split(",");
+        return new Dimension(Double.valueOf(size[0]).intValue(),
+                             Double.valueOf(size[1]).intValue());
+      case 'n':
+      default:
+        return null;
+    }
+  }
+
   /**
    * Is JavaScript enables in this driver?
    *
@@ -1248,10 +1576,7 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
   @Deprecated
   public void executeActions(OperaAction action) {
     services.captureOperaIdle();
-    List<UserInteraction> actions = action.getActions();
-    for (UserInteraction userInteraction : actions) {
-      userInteraction.execute(this);
-    }
+    new ActionChainExecutor(this).execute(new ActionChain(action));
     waitForLoadToComplete();
   }
 
@@ -1418,8 +1743,73 @@ public class OperaDriver extends RemoteWebDriver implements TakesScreenshot {
     services.getPrefs().setPrefs(section, key, value);
   }
 
+  /**
+   * Executes a script which signals its completion by calling the callback passed to it as the
+   * last argument, and returns the value given to the callback.
+   *
+   * The script is started with a single eval, and the callback keeps its value in the page.  Where
+   * the console-logger service is available it is enabled for the time of the wait, the callback
+   * also logs a signal to the console, which is waited for without sending anything to Opera, and
+   * the value is then fetched with one eval.
+   * Otherwise each check is a single eval, made after a sleep which backs off like the element
+   * lookups do, and the value is fetched in the same eval as the check which finds it.
+   *
+   * @throws TimeoutException if the callback is not called within the script timeout
+   */
   public Object executeAsyncScript(String script, Object... args) {
-    throw new UnsupportedOperationException();
+    long start = System.currentTimeMillis();
+    long timeout = OperaIntervals.SCRIPT_TIMEOUT.getValue();
+    String id = String.valueOf(++asyncScriptCount);
+    boolean signalled = services.isScriptSignalAvailable();
+
+    Object[] params = new Object[args.length + 1];
+    System.arraycopy(args, 0, params, 0, args.length);
+    params[args.length] = id;
+
+    if (signalled) {
+      services.startScriptSignals();
+      services.expectScriptSignal(ASYNC_SIGNAL + id);
+    }
+
+    try {
+      executeScript("var id = arguments[arguments.length - 1];"
+                    + "var args = Array.prototype.slice.call(arguments, 0, arguments.length - 1);"
+                    + "var results = window." + ASYNC_RESULTS + " || (window." + ASYNC_RESULTS
+                    + " = {});"
+                    + "args.push(function(value) {"
+                    + "  if (id in results) return;"
+                    + "  results[id] = [value];"
+                    + (signalled ? "  " + scriptSignal("'" + ASYNC_SIGNAL + "' + id") + ";" : "")
+                    + "});"
+                    + "(function() {" + script + "}).apply(window, args);", params);
+
+      if (signalled && !services.waitForScriptSignal(ASYNC_SIGNAL + id, timeout)) {
+        throw new TimeoutException("Script did not call back within " + timeout + " ms");
+      }
+    } finally {
+      if (signalled) {
+        services.cancelScriptSignal(ASYNC_SIGNAL + id);
+        services.stopScriptSignals();
+      }
+    }
+
+    String check = "var results = window." + ASYNC_RESULTS + ";"
+                   + "if (!results || !('" + id + "' in results)) return false;"
+                   + "var result = results['" + id + "'];"
+                   + "delete results['" + id + "'];"
+                   + "return result;";
+
+    for (int tries = 1; ; tries++) {
+      Object result = executeScript(check);
+      if (result instanceof List) {
+        return ((List<?>) result).get(0);
+      }
+
+      if (System.currentTimeMillis() - start >= timeout) {
+        throw new TimeoutException("Script did not call back within " + timeout + " ms");
+      }
+      sleepBeforeRetry(start, timeout, tries);
+    }
   }
 
   public Keyboard getKeyboard() {
@@ -18,6 +18,7 @@ package com.opera.core.systems;
 
 import com.opera.core.systems.model.Canvas;
 import com.opera.core.systems.model.ColorResult;
+import com.opera.core.systems.model.KeySequence;
 import com.opera.core.systems.model.ScreenShotReply;
 import com.opera.core.systems.scope.internal.OperaColors;
 import com.opera.core.systems.scope.internal.OperaFlags;
@@ -80,11 +81,12 @@ public class OperaWebElement extends RemoteWebElement {
   public OperaWebElement(OperaDriver parent, int objectId) {
     this.parent = parent;
     this.objectId = objectId;
-    parent.objectIds.add(objectId);
 
     debugger = parent.getScriptDebugger();
     execService = parent.getExecService();
     this.runtimeId = debugger.getRuntimeId();
+
+    parent.elementHandles.register(this, objectId, runtimeId);
   }
 
   /**
@@ -160,7 +162,7 @@ public class OperaWebElement extends RemoteWebElement {
    */
   public void mouseUp() {
     Point point = coordinates.getLocationInViewPort();
-    execService.mouseAction(point.x, point.y, OperaMouseKeys.LEFT_DOWN);
+    execService.mouseAction(point.x, point.y, OperaMouseKeys.LEFT_UP);
   }
 
   /**
@@ -182,8 +184,10 @@ public class OperaWebElement extends RemoteWebElement {
   }
 
   public void click() {
+    Preflight state = preflight(false, true);
+
     if (OperaFlags.ENABLE_CHECKS) {
-      if (!isDisplayed()) {
+      if (!state.displayed) {
         throw new ElementNotVisibleException(
             "You can't click an element that is not displayed");
       }
@@ -192,17 +196,13 @@ public class OperaWebElement extends RemoteWebElement {
     parent.getScopeServices().captureOperaIdle();
 
     // FIXME: temporary fix for toggle and setSelected deprecation
-    Integer id = debugger.executeScriptOnObject("return locator.parentNode", objectId);
-    OperaWebElement parentNode = new OperaWebElement(this.parent, id);
-
-    String multiple = parentNode.getAttribute("multiple");
-    if (parentNode.getTagName().equalsIgnoreCase("SELECT") &&
-        multiple != null && !multiple.equals("false")) {
+    if (state.inMultipleSelect) {
       toggle();
-    } else if (this.getTagName().equals("OPTION")) {
+    } else if (state.tagName.equalsIgnoreCase("OPTION")) {
       setSelected();
     } else {
-      parent.actionHandler.click(this, "");
+      // Click just inside the element, as the action handler does
+      execService.mouseAction(state.location.x + 1, state.location.y + 1, OperaMouseKeys.LEFT);
     }
     parent.waitForLoadToComplete();
   }
@@ -236,8 +236,8 @@ public class OperaWebElement extends RemoteWebElement {
                         "}" +
                         "return locator.textContent;");
     } else {
-      return callMethod(
-          "return " + OperaAtoms.GET_ATTRIBUTE.getValue() + "(locator, '" + attribute + "')");
+      return callMethod("return " + debugger.getAtom(OperaAtoms.GET_ATTRIBUTE)
+                        + "(locator, '" + attribute + "')");
     }
   }
 
@@ -251,7 +251,7 @@ public class OperaWebElement extends RemoteWebElement {
   }
 
   public String getText() {
-    return callMethod("return " + OperaAtoms.GET_TEXT.getValue() + "(locator)");
+    return callMethod("return " + debugger.getAtom(OperaAtoms.GET_TEXT) + "(locator)");
   }
 
   @Deprecated
@@ -267,17 +267,20 @@ public class OperaWebElement extends RemoteWebElement {
 
   public boolean isDisplayed() {
     throwIfStale();
-    return (Boolean) evaluateMethod("return " + OperaAtoms.IS_DISPLAYED.getValue() + "(locator)");
+    return (Boolean) evaluateMethod("return " + debugger.getAtom(OperaAtoms.IS_DISPLAYED)
+                                    + "(locator)");
   }
 
   public boolean isEnabled() {
     throwIfStale();
-    return (Boolean) evaluateMethod("return " + OperaAtoms.IS_ENABLED.getValue() + "(locator)");
+    return (Boolean) evaluateMethod("return " + debugger.getAtom(OperaAtoms.IS_ENABLED)
+                                    + "(locator)");
   }
 
   public boolean isSelected() {
     throwIfStale();
-    return (Boolean) evaluateMethod("return " + OperaAtoms.IS_SELECTED.getValue() + "(locator)");
+    return (Boolean) evaluateMethod("return " + debugger.getAtom(OperaAtoms.IS_SELECTED)
+                                    + "(locator)");
   }
 
   /**
@@ -291,7 +294,7 @@ public class OperaWebElement extends RemoteWebElement {
   public void clear() {
     if (isEnabled()) {
       if (!Boolean.valueOf(getAttribute("readonly"))) {
-        executeMethod("return " + OperaAtoms.CLEAR.getValue() + "(locator)");
+        executeMethod("return " + debugger.getAtom(OperaAtoms.CLEAR) + "(locator)");
       }
     }
   }
@@ -304,59 +307,38 @@ public class OperaWebElement extends RemoteWebElement {
     // Keys that have been held down, and need to be released
     ArrayList<String> heldKeys = new ArrayList<String>();
 
-    if (OperaFlags.ENABLE_CHECKS) {
-
-      long start = System.currentTimeMillis();
-      boolean isDisplayed = false;
+    // The element is focused by the same script which checks it
+    long start = System.currentTimeMillis();
+    Preflight state;
 
-      do {
-        isDisplayed = isDisplayed();
+    do {
+      state = preflight(true, false);
 
-        if (!isDisplayed && parent.hasTimeRemaining(start)) {
-          sleep(OperaIntervals.EXEC_SLEEP.getValue());
-        } else {
-          break;
-        }
+      if (OperaFlags.ENABLE_CHECKS && !state.displayed && parent.hasTimeRemaining(start)) {
+        sleep(OperaIntervals.EXEC_SLEEP.getValue());
+      } else {
+        break;
+      }
 
-      } while (true);
+    } while (true);
 
-      if (!isDisplayed()) {
+    if (OperaFlags.ENABLE_CHECKS) {
+      if (!state.displayed) {
         throw new ElementNotVisibleException(
             "You can't type on an element that is not displayed");
       }
-      if (!isEnabled()) {
+      if (!state.enabled) {
         throw new InvalidElementStateException(
             "You can't type on an element that is disabled");
       }
     }
 
-    if (getTagName().equalsIgnoreCase("input")
-        && (hasAttribute("type") && getAttribute("type").equals("file"))) {
+    if (!state.focused) {
+      throw new InvalidElementStateException("Failed to send keys because cannot focus element");
+    }
+
+    if (state.isFileInput()) {
       click();
-    } else {
-      executeMethod("locator.focus()");
-      // When focused textareas return the cursor to the last position it
-      // was at. Inputs place the cursor at the beginning, and so we need
-      // to move it to the end. We do this by pre-pending an "End" key to
-      // the keys to send (in a round-about way)
-      if (getTagName().equalsIgnoreCase("input")) {
-        // Javascript from webdriver_session.cc in ChromeDriver
-        executeMethod(
-            "function(elem) {"
-            + "  var doc = elem.ownerDocument || elem;"
-            + "  var prevActiveElem = doc.activeElement;"
-            + "  if (elem != prevActiveElem && prevActiveElem)"
-            + "    prevActiveElem.blur();"
-            + "  elem.focus();"
-            + "  if (elem != prevActiveElem && elem.value && elem.value.length &&"
-            + "      elem.setSelectionRange) {"
-            + "    elem.setSelectionRange(elem.value.length, elem.value.length);"
-            + "  }"
-            + "  if (elem != doc.activeElement)"
-            + "    throw new Error('Failed to send keys because cannot focus element');"
-            + "}(locator)"
-        );
-      }
     }
 
     // This code is a bit ugly. Because "special" keys can be sent either as
@@ -364,48 +346,25 @@ public class OperaWebElement extends RemoteWebElement {
     // characters, we have to loop through the string and check each against
     // a list of special keys.
 
-    parent.getScopeServices().captureOperaIdle();
+    // All the keys are compiled into one sequence, which is sent in one go.  The sequence tracks
+    // the keys held down, so the modifiers apply just as if each key was sent on its own.
+    KeySequence sequence = execService.keySequence();
+
     for (CharSequence seq : keysToSend) {
       if (seq instanceof Keys) {
-        String key = OperaKeys.get(((Keys) seq).name());
-        // Check if this is a key we hold down, and haven't already pressed,
-        // and press, but don't release it. That's done at the end of this
-        // method.
-        if (holdKeys.contains(key) && !heldKeys.contains(key) && !execService.keyIsPressed(key)) {
-          execService.key(key, false);
-          heldKeys.add(key);
-        } else if (key == "null") {
-          for (String hkey : heldKeys) {
-            execService.key(hkey, true);
-          }
-        } else {
-          execService.key(key);
-        }
+        addKey(sequence, OperaKeys.get(((Keys) seq).name()), holdKeys, heldKeys);
       } else if (seq.toString().equals("\n")) {
-        execService.key("enter");
+        sequence.press("enter");
       } else {
         // We need to check each character to see if it is a "special" key
         for (int i = 0; i < seq.length(); i++) {
           Character c = seq.charAt(i);
           String keyName = charToKeyName(c);
 
-          // Buffer normal keys for a single type() call
           if (keyName == null) {
-            execService.type(c.toString());
+            sequence.type(c.toString());
           } else {
-            String key = OperaKeys.get(keyName);
-            // FIXME: Code repeated from above.
-            if (holdKeys.contains(key) && !heldKeys.contains(key) && !execService
-                .keyIsPressed(key)) {
-              execService.key(key, false);
-              heldKeys.add(key);
-            } else if (key == "null") {
-              for (String hkey : heldKeys) {
-                execService.key(hkey, true);
-              }
-            } else {
-              execService.key(key);
-            }
+            addKey(sequence, OperaKeys.get(keyName), holdKeys, heldKeys);
           }
         }
       }
@@ -413,14 +372,58 @@ public class OperaWebElement extends RemoteWebElement {
 
     if (heldKeys.size() > 0) {
       for (String key : heldKeys) {
-        execService.key(key, true);
+        sequence.up(key);
       }
     }
 
+    parent.getScopeServices().captureOperaIdle();
+    execService.keys(sequence);
+
     parent.waitForLoadToComplete();
     // executeMethod("locator.blur()");
   }
 
+  /**
+   * Adds a special key to a sequence.  Keys which are held down, rather than pressed, are pressed
+   * and left down until the end of the sequence, unless they are down already.  The "null" key
+   * releases them.
+   */
+  private static void addKey(KeySequence sequence, String key, List<String> holdKeys,
+                             List<String> heldKeys) {
+    if (holdKeys.contains(key) && !heldKeys.contains(key) && !sequence.isPressed(key)) {
+      sequence.down(key);
+      heldKeys.add(key);
+    } else if ("null".equals(key)) {
+      for (String hkey : heldKeys) {
+        sequence.up(hkey);
+      }
+    } else {
+      sequence.press(key);
+    }
+  }
+
+  /**
+   * Focuses the element.  Inputs place the cursor at the beginning when focused, unlike textareas
+   * which return it to where it was, so the cursor of an input which was not focused already is
+   * moved to the end.  An input which could not be focused is told by "focused".  From
+   * webdriver_session.cc in ChromeDriver.
+   */
+  private static final String FOCUS_SCRIPT =
+      "if (/^input$/i.test(tag)) {"
+      + "  var doc = locator.ownerDocument || locator;"
+      + "  var prevActiveElem = doc.activeElement;"
+      + "  if (locator != prevActiveElem && prevActiveElem)"
+      + "    prevActiveElem.blur();"
+      + "  locator.focus();"
+      + "  if (locator != prevActiveElem && locator.value && locator.value.length &&"
+      + "      locator.setSelectionRange) {"
+      + "    locator.setSelectionRange(locator.value.length, locator.value.length);"
+      + "  }"
+      + "  focused = (locator == doc.activeElement);"
+      + "} else {"
+      + "  locator.focus();"
+      + "}";
+
   /**
    * Stores a map of special character codes to the string representation.
    * For example "\uE00E" maps to "page_up"
@@ -444,10 +447,6 @@ public class OperaWebElement extends RemoteWebElement {
     return keysLookup.get(c);
   }
 
-  private boolean hasAttribute(String attr) {
-    return getAttribute(attr) != null;
-  }
-
   /**
    * @deprecated Please use "click" instead
    */
@@ -469,13 +468,13 @@ public class OperaWebElement extends RemoteWebElement {
       }
     }
 
-    evaluateMethod("return " + OperaAtoms.SET_SELECTED.getValue() + "(locator, true)");
+    evaluateMethod("return " + debugger.getAtom(OperaAtoms.SET_SELECTED) + "(locator, true)");
   }
 
   public void submit() {
     parent.getScopeServices().captureOperaIdle();
 
-    evaluateMethod("return " + OperaAtoms.SUBMIT.getValue() + "(locator)");
+    evaluateMethod("return " + debugger.getAtom(OperaAtoms.SUBMIT) + "(locator)");
 
     parent.waitForLoadToComplete();
   }
@@ -514,7 +513,7 @@ public class OperaWebElement extends RemoteWebElement {
     }
 
     return (Boolean) debugger.callFunctionOnObject(
-        "return " + OperaAtoms.TOGGLE.getValue() + "(locator)", objectId, true);
+        "return " + debugger.getAtom(OperaAtoms.TOGGLE) + "(locator)", objectId, true);
   }
 
   private static void sleep(long ms) {
@@ -560,7 +559,7 @@ public class OperaWebElement extends RemoteWebElement {
    */
   public Point getLocation() {
     String coordinates = debugger.callFunctionOnObject(
-        "var coords = " + OperaAtoms.GET_LOCATION.getValue() +
+        "var coords = " + debugger.getAtom(OperaAtoms.GET_LOCATION) +
         "(locator); return coords.x + ',' + coords.y;", objectId
     );
 
@@ -583,13 +582,13 @@ public class OperaWebElement extends RemoteWebElement {
   }
 
   public Dimension getSize() {
-    if (!parent.objectIds.contains(objectId)) {
+    if (!parent.elementHandles.isLive(objectId)) {
       throw new StaleElementReferenceException(
           "You cant interact with stale elements");
     }
 
     String widthAndHeight = debugger.callFunctionOnObject(
-        "var s=" + OperaAtoms.GET_SIZE.getValue() + "(locator);return s.width+','+s.height;",
+        "var s=" + debugger.getAtom(OperaAtoms.GET_SIZE) + "(locator);return s.width+','+s.height;",
         objectId
     );
     String[] dimension = widthAndHeight.split(",");
@@ -653,9 +652,13 @@ public class OperaWebElement extends RemoteWebElement {
    */
   public String saveScreenshot(String filename, long timeout,
                                boolean includeImage, String... hashes) {
-    Canvas canvas = buildCanvas();
-    ScreenShotReply reply = execService.screenWatcher(canvas, timeout,
-                                                      includeImage, hashes);
+    ScreenShotReply reply;
+    if (includeImage) {
+      reply = saveScreenshot(timeout, hashes);
+    } else {
+      reply = execService.screenWatcher(buildCanvas(), timeout, false, hashes);
+    }
+
     if (includeImage && reply.getPng() != null) {
       FileChannel stream;
       try {
@@ -674,11 +677,16 @@ public class OperaWebElement extends RemoteWebElement {
    *
    * @param timeout The number of milliseconds to wait before taking the screenshot
    * @param hashes  A previous screenshot MD5 hash. If it matches the hash of this screenshot then
-   *                no image data is returned.
+   *                no image data is returned.  Screenshots taken earlier in the session are
+   *                served from the screenshot cache instead of being sent again.
    */
-  public ScreenShotReply saveScreenshot(long timeout, String... hashes) {
-    Canvas canvas = buildCanvas();
-    return execService.screenWatcher(canvas, timeout, true, hashes);
+  public ScreenShotReply saveScreenshot(final long timeout, String... hashes) {
+    final Canvas canvas = buildCanvas();
+    return parent.screenshotCache.take(canvas, new ScreenshotCache.Source() {
+      public ScreenShotReply take(String... known) {
+        return execService.screenWatcher(canvas, timeout, true, known);
+      }
+    }, hashes);
   }
 
   /**
@@ -813,12 +821,6 @@ public class OperaWebElement extends RemoteWebElement {
                                 + "}\n" + "return elements", "XPath");
   }
 
-  @Override
-  protected void finalize() throws Throwable {
-    debugger.releaseObject(objectId);
-    super.finalize();
-  }
-
   public Coordinates getCoordinates() {
     return coordinates;
   }
@@ -852,16 +854,97 @@ public class OperaWebElement extends RemoteWebElement {
   };
 
   public String getCssValue(String property) {
-    return callMethod(
-        "return " + OperaAtoms.GET_EFFECTIVE_STYLE.getValue() + "(locator, '" + property + "')");
+    return callMethod("return " + debugger.getAtom(OperaAtoms.GET_EFFECTIVE_STYLE)
+                      + "(locator, '" + property + "')");
   }
 
   public WebDriver getWrappedDriver() {
     return parent;
   }
 
+  /**
+   * The state of an element which decides how to interact with it.
+   */
+  private static class Preflight {
+
+    private boolean displayed;
+    private boolean enabled;
+    private boolean inMultipleSelect;
+    // False if the element was to be focused but could not be
+    private boolean focused;
+    private String tagName;
+    private String type;
+    // The position of the element in the viewport, or null if it was not looked up
+    private Point location;
+
+    private boolean isFileInput() {
+      return tagName.equalsIgnoreCase("input") && type.equals("file");
+    }
+
+  }
+
+  /**
+   * Looks up everything needed before clicking or typing on the element with a single script,
+   * instead of one script for each property.  The script also does the first part of the
+   * interaction, so that it needs no script of its own.
+   *
+   * @param focus  whether to focus the element, unless it is a file input.  With checks enabled
+   *               the element is only focused if it is displayed and enabled.
+   * @param locate whether to scroll the element into view and look up its position, unless it is
+   *               an option or its list can select multiple options.  With checks enabled the
+   *               position is only looked up if the element is displayed.
+   * @throws StaleElementReferenceException if the element is no longer in the DOM
+   */
+  private Preflight preflight(boolean focus, boolean locate) {
+    if (!parent.elementHandles.isLive(objectId)) {
+      throw new StaleElementReferenceException("You cant interact with stale elements");
+    }
+
+    String checked = OperaFlags.ENABLE_CHECKS ? "displayed" : "true";
+
+    String reply = callMethod(
+        "var p = locator.parentNode;"
+        + "if (p == undefined) return '';"
+        + "var displayed = " + debugger.getAtom(OperaAtoms.IS_DISPLAYED) + "(locator);"
+        + "var enabled = " + debugger.getAtom(OperaAtoms.IS_ENABLED) + "(locator);"
+        + "var tag = locator.tagName, type = (locator.getAttribute('type') || '').toLowerCase();"
+        + "var multiple = /^select$/i.test(p.nodeName) && !!p.multiple;"
+        + "var focused = true, x = 0, y = 0;"
+        + (focus ? "if (" + checked + " && enabled && !(/^input$/i.test(tag) && type == 'file')) {"
+                   + FOCUS_SCRIPT
+                   + "}" : "")
+        + (locate ? "if (" + checked + " && !multiple && !/^option$/i.test(tag)) {"
+                    + "locator.scrollIntoView();"
+                    + "if (window.top !== window.self) {"
+                    + "x = (window.screenLeft - window.top.screenLeft) + window.scrollX;"
+                    + "y = (window.screenTop - window.top.screenTop) + window.scrollY;"
+                    + "}"
+                    + "var r = locator.getBoundingClientRect();"
+                    + "x += r.left; y += r.top;"
+                    + "}" : "")
+        + "return [displayed, enabled, multiple, focused, x, y, tag, type].join(',');");
+
+    if (reply == null || reply.length() == 0) {
+      throw new StaleElementReferenceException("You cant interact with stale elements");
+    }
+
+    String[] values = reply.split(",", 8);
+    Preflight state = new Preflight();
+    state.displayed = Boolean.valueOf(values[0]);
+    state.enabled = Boolean.valueOf(values[1]);
+    state.inMultipleSelect = Boolean.valueOf(values[2]);
+    state.focused = Boolean.valueOf(values[3]);
+    if (locate) {
+      state.location = new Point((int) Double.parseDouble(values[4]),
+                                 (int) Double.parseDouble(values[5]));
+    }
+    state.tagName = values[6];
+    state.type = values[7];
+    return state;
+  }
+
   private void throwIfStale() {
-    if (!parent.objectIds.contains(objectId) ||
+    if (!parent.elementHandles.isLive(objectId) ||
         Boolean
             .valueOf(debugger.callFunctionOnObject("locator.parentNode == undefined", objectId))) {
       throw new StaleElementReferenceException("You cant interact with stale elements");
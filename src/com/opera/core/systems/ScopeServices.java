@@ -18,8 +18,10 @@ package com.opera.core.systems;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
@@ -35,6 +37,7 @@ import com.opera.core.systems.scope.exceptions.CommunicationException;
 import com.opera.core.systems.scope.handlers.IConnectionHandler;
 import com.opera.core.systems.scope.internal.OperaIntervals;
 import com.opera.core.systems.scope.protos.ScopeProtos;
+import com.opera.core.systems.scope.protos.ConsoleLoggerProtos.ConsoleMessage;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.DesktopWindowInfo;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuID;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuInfo;
@@ -62,6 +65,7 @@ import com.opera.core.systems.scope.services.ums.SystemInputManager;
 import com.opera.core.systems.scope.services.ums.UmsServices;
 import com.opera.core.systems.scope.stp.StpConnection;
 import com.opera.core.systems.scope.stp.StpThread;
+import com.opera.core.systems.scope.stp.UmsEventParser;
 import com.opera.core.systems.util.VersionUtil;
 
 /**
@@ -71,6 +75,12 @@ import com.opera.core.systems.util.VersionUtil;
  */
 public class ScopeServices implements IConnectionHandler {
 
+  /**
+   * The prefix of the console messages with which scripts signal the driver.  The id of the signal
+   * follows it.
+   */
+  public static final String SCRIPT_SIGNAL = "__webdriverSignal:";
+
   private final Logger logger = Logger.getLogger(this.getClass().getName());
 
   private ICoreUtils coreUtils;
@@ -87,6 +97,17 @@ public class ScopeServices implements IConnectionHandler {
 
   private Map<String, String> versions;
 
+  // Whether the ecmascript service is used, which reports the ready state of documents
+  private boolean ecmascriptService = false;
+
+  // Whether the console-logger service is available, through which scripts signal the driver
+  private boolean consoleLogger = false;
+
+  // The number of users of script signals.  The console-logger service is only enabled while there
+  // are any, so that the console messages of the page are not sent to the driver otherwise.
+  private int scriptSignalUsers = 0;
+  private final Object scriptSignalLock = new Object();
+
   private WaitState waitState = new WaitState();
   private StpConnection connection = null;
 
@@ -194,9 +215,21 @@ public class ScopeServices implements IConnectionHandler {
    */
   public ScopeServices(Map<String, String> versions, int port, boolean manualConnect)
       throws IOException {
+    this(versions, port, manualConnect, false);
+  }
+
+  /**
+   * Creates the Scope server on specified address and port, as well as enabling the required
+   * services for OperaDriver.
+   *
+   * @param sharedMonitor whether the connection is served by the socket monitor threads shared by
+   *                      all drivers in the JVM, rather than by a thread of its own
+   */
+  public ScopeServices(Map<String, String> versions, int port, boolean manualConnect,
+                       boolean sharedMonitor) throws IOException {
     this.versions = versions;
     tagCounter = new AtomicInteger();
-    stpThread = new StpThread(port, this, new UmsEventHandler(this), manualConnect);
+    stpThread = new StpThread(port, this, new UmsEventHandler(this), manualConnect, sharedMonitor);
     selftestOutput = new StringBuilder();
   }
 
@@ -216,7 +249,6 @@ public class ScopeServices implements IConnectionHandler {
 
     List<String> wantedServices = new ArrayList<String>();
 
-    boolean ecmascriptService = false;
     for (Service service : hostInfo.getServiceListList()) {
       if (service.getName().equals("ecmascript")) {
         ecmascriptService = true;
@@ -252,10 +284,17 @@ public class ScopeServices implements IConnectionHandler {
       wantedServices.add("selftest");
     }
 
-    //wantedServices.add("console-logger");
+    // console-logger is enabled on demand by startScriptSignals()
+    consoleLogger = getListedServices().contains("console-logger");
     //wantedServices.add("http-logger");
     wantedServices.add("cookie-manager");
 
+    // The desktop window and menu events can be waited for at any time
+    if (wantedServices.contains("desktop-window-manager")) {
+      UmsEventParser.subscribeService(connection.getEventSubscriptions(),
+                                      "desktop-window-manager");
+    }
+
     enableServices(wantedServices);
 
     initializeServices(enableDebugger);
@@ -373,6 +412,10 @@ public class ScopeServices implements IConnectionHandler {
           return null;
         }
 
+        public Object executeScriptForResult(String using, Integer objectId) {
+          return null;
+        }
+
         public Integer executeScriptOnObject(String using, int objectId) {
           return null;
         }
@@ -433,6 +476,10 @@ public class ScopeServices implements IConnectionHandler {
         public void resetFramePath() {
         }
 
+        public String getAtom(OperaAtoms atom) {
+          return atom.getValue();
+        }
+
         public void changeRuntime(int index) {
         }
 
@@ -446,6 +493,13 @@ public class ScopeServices implements IConnectionHandler {
 
         public void setDriver(OperaDriver driver) {
         }
+
+        public Integer getWindowId(int runtimeId) {
+          return null;
+        }
+
+        public void setElementHandles(ElementHandles handles) {
+        }
       };
     }
   }
@@ -459,23 +513,35 @@ public class ScopeServices implements IConnectionHandler {
   }
 
   public void enableServices(List<String> requiredServices) {
+    // The services are independent of each other, so enable them all before waiting for any of
+    // the responses
+    List<Future<Response>> responses = new ArrayList<Future<Response>>();
     for (String requiredService : requiredServices) {
+      if (getListedServices().contains(requiredService)) {
+        responses.add(enable(requiredService));
+      }
+    }
+
+    for (Response response : waitForResponses(responses,
+                                              OperaIntervals.RESPONSE_TIMEOUT.getValue())) {
       try {
-        if (getListedServices().contains(requiredService)) {
-          enable(requiredService);
-        }
+        ServiceResult.parseFrom(response.getPayload());
       } catch (InvalidProtocolBufferException e) {
         throw new WebDriverException("Could not parse the message");
       }
     }
   }
 
-  private ServiceResult enable(String serviceName)
-      throws InvalidProtocolBufferException {
+  private Future<Response> enable(String serviceName) {
+    ServiceSelection.Builder selection = ServiceSelection.newBuilder();
+    selection.setName(serviceName);
+    return executeCommandAsync(ScopeCommand.ENABLE, selection);
+  }
+
+  private Future<Response> disable(String serviceName) {
     ServiceSelection.Builder selection = ServiceSelection.newBuilder();
     selection.setName(serviceName);
-    Response response = executeCommand(ScopeCommand.ENABLE, selection);
-    return ServiceResult.parseFrom(response.getPayload());
+    return executeCommandAsync(ScopeCommand.DISABLE, selection);
   }
 
   public void quitOpera(OperaRunner runner, int pid) {
@@ -536,6 +602,21 @@ public class ScopeServices implements IConnectionHandler {
     waitState.onWindowLoaded(id);
   }
 
+  public void onReadyStateChanged(ReadyStateChange change) {
+    waitState.onReadyStateChanged(change.getRuntimeID(), change.getState());
+  }
+
+  /**
+   * Takes the console messages starting with {@link #SCRIPT_SIGNAL} as signals from scripts, and
+   * ignores all others.
+   */
+  public void onConsoleMessage(ConsoleMessage message) {
+    String description = message.getDescription();
+    if (description.startsWith(SCRIPT_SIGNAL)) {
+      waitState.onScriptSignal(description.substring(SCRIPT_SIGNAL.length()));
+    }
+  }
+
   public void onWindowClosed(int id) {
     logger.finest("Window closed: windowId=" + id);
     waitState.onWindowClosed(id);
@@ -618,8 +699,13 @@ public class ScopeServices implements IConnectionHandler {
       throw new UnsupportedOperationException("selftest service is not supported");
     }
 
-    selftest.runSelftests(modules);
-    return waitState.waitForSelftestDone(timeout);
+    UmsEventParser.subscribeService(connection.getEventSubscriptions(), "selftest");
+    try {
+      selftest.runSelftests(modules);
+      return waitState.waitForSelftestDone(timeout);
+    } finally {
+      UmsEventParser.unsubscribeService(connection.getEventSubscriptions(), "selftest");
+    }
   }
 
   public void waitForWindowLoaded(int activeWindowId, long timeout) {
@@ -628,6 +714,121 @@ public class ScopeServices implements IConnectionHandler {
     waitState.waitForWindowLoaded(activeWindowId, timeout);
   }
 
+  /**
+   * Waits for the documents being loaded in the active window to finish loading, from the ready
+   * state events sent by the ecmascript service.
+   *
+   * @param startTimeout time in milliseconds to wait for a document to start loading
+   * @param timeout      time in milliseconds to wait for the documents to be loaded
+   * @return whether the documents were loaded in time
+   * @see #isReadyStateAvailable()
+   */
+  public boolean waitForPageLoad(long startTimeout, long timeout) {
+    return waitState.waitForPageLoad(windowManager.getActiveWindowId(), startTimeout, timeout,
+                                     new WaitState.DocumentLocator() {
+                                       public Integer getWindowId(int runtimeId) {
+                                         return debugger.getWindowId(runtimeId);
+                                       }
+                                     });
+  }
+
+  /**
+   * @return whether the ready state of documents is reported, so that page loads can be waited for
+   *         with {@link #waitForPageLoad(long, long)}
+   */
+  public boolean isReadyStateAvailable() {
+    return ecmascriptService;
+  }
+
+  /**
+   * @return whether scripts can signal the driver by logging {@link #SCRIPT_SIGNAL} followed by an
+   *         id to the console, to be waited for with {@link #waitForScriptSignal(String, long)}
+   */
+  public boolean isScriptSignalAvailable() {
+    return consoleLogger;
+  }
+
+  /**
+   * Starts passing script signals to the driver, by enabling the console-logger service and
+   * subscribing to its messages.  Calls must be paired with {@link #stopScriptSignals()}, and
+   * signals are only received between the two.
+   *
+   * @see #isScriptSignalAvailable()
+   */
+  public void startScriptSignals() {
+    synchronized (scriptSignalLock) {
+      if (scriptSignalUsers > 0) {
+        scriptSignalUsers++;
+        return;
+      }
+
+      StpConnection current = connection;
+      if (current == null) {
+        throw new CommunicationException("Not connected to Opera");
+      }
+
+      // Subscribed first, so that no message sent once the service is enabled is dropped
+      UmsEventParser.subscribeService(current.getEventSubscriptions(), "console-logger");
+      try {
+        enableServices(Arrays.asList("console-logger"));
+      } catch (RuntimeException e) {
+        UmsEventParser.unsubscribeService(current.getEventSubscriptions(), "console-logger");
+        throw e;
+      }
+      scriptSignalUsers = 1;
+    }
+  }
+
+  /**
+   * Stops passing script signals to the driver once nothing else uses them.  The console-logger
+   * service is then disabled, without waiting for the response.
+   */
+  public void stopScriptSignals() {
+    synchronized (scriptSignalLock) {
+      if (--scriptSignalUsers > 0) {
+        return;
+      }
+
+      StpConnection current = connection;
+      if (current != null) {
+        UmsEventParser.unsubscribeService(current.getEventSubscriptions(), "console-logger");
+        disable("console-logger");
+      }
+    }
+  }
+
+  /**
+   * Registers a signal which a script will send.  This must be called before the script is run,
+   * between {@link #startScriptSignals()} and {@link #stopScriptSignals()}.
+   *
+   * @param id the id of the signal
+   * @see #isScriptSignalAvailable()
+   */
+  public void expectScriptSignal(String id) {
+    waitState.expectScriptSignal(id);
+  }
+
+  /**
+   * Forgets a signal registered with {@link #expectScriptSignal(String)} which will not be waited
+   * for.
+   *
+   * @param id the id of the signal
+   */
+  public void cancelScriptSignal(String id) {
+    waitState.cancelScriptSignal(id);
+  }
+
+  /**
+   * Waits for a signal registered with {@link #expectScriptSignal(String)}.
+   *
+   * @param id      the id of the signal
+   * @param timeout time in milliseconds to wait for the signal
+   * @return whether the signal was received in time
+   */
+  public boolean waitForScriptSignal(String id, long timeout) {
+    return waitState.waitForScriptSignal(id, timeout);
+  }
+
   public boolean isOperaIdleAvailable() {
     for (ScopeProtos.Service service : hostInfo.getServiceListList()) {
       if (service.getName().equals("core")) {
@@ -785,15 +986,6 @@ public class ScopeServices implements IConnectionHandler {
     return versions.get(service);
   }
 
-  private Response waitForResponse(int tag, long timeout) {
-    try {
-      return waitState.waitFor(tag, timeout);
-    } catch (WebDriverException e) {
-      shutdown();
-      throw e;
-    }
-  }
-
   public void setListedServices(java.util.List<String> services) {
     listedServices = services;
   }
@@ -829,12 +1021,71 @@ public class ScopeServices implements IConnectionHandler {
 
   public Response executeCommand(ICommand command, Builder<?> builder,
                                  long timeout) {
+    return waitForResponse(executeCommandAsync(command, builder), timeout);
+  }
+
+  /**
+   * Sends a command without waiting for the response.  Several commands can be sent back-to-back
+   * this way, and their responses are then waited for together using {@link
+   * #waitForResponses(List, long)}, so independent commands do not each cost a full round trip.
+   *
+   * The future yields <code>null</code> if Opera answered the command with an error.
+   *
+   * @param command the command to send
+   * @param builder the payload of the command, or <code>null</code> if it has none
+   * @return a future completed when the response to the command is received
+   */
+  public Future<Response> executeCommandAsync(ICommand command, Builder<?> builder) {
     ByteString payload = (builder != null) ? builder.build().toByteString()
                                            : ByteString.EMPTY;
     Command.Builder commandBuilder = buildCommand(command, payload);
     int tag = commandBuilder.getTag();
-    connection.send(commandBuilder.build());
-    return waitForResponse(tag, timeout);
+
+    StpConnection current = connection;
+    if (current == null) {
+      throw new CommunicationException("Not connected to Opera");
+    }
+
+    Future<Response> future = waitState.expectResponse(tag);
+    current.send(commandBuilder.build());
+    return future;
+  }
+
+  /**
+   * Waits for the response of a command sent with {@link #executeCommandAsync(ICommand,
+   * Builder)}.
+   *
+   * @param future  the future returned when sending the command
+   * @param timeout time in milliseconds to wait for the response
+   * @return the response, or <code>null</code> if the command failed
+   */
+  public Response waitForResponse(Future<Response> future, long timeout) {
+    try {
+      return waitState.waitFor(future, timeout);
+    } catch (WebDriverException e) {
+      shutdown();
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the responses of several commands sent with {@link #executeCommandAsync(ICommand,
+   * Builder)}.  The timeout applies to the whole batch.
+   *
+   * @param futures the futures returned when sending the commands
+   * @param timeout time in milliseconds to wait for all the responses
+   * @return the responses, in the same order as the futures
+   */
+  public List<Response> waitForResponses(List<Future<Response>> futures, long timeout) {
+    List<Response> responses = new ArrayList<Response>(futures.size());
+    long deadline = System.currentTimeMillis() + timeout;
+
+    for (Future<Response> future : futures) {
+      long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+      responses.add(waitForResponse(future, remaining));
+    }
+
+    return responses;
   }
 
   public void startStpThread() {
@@ -0,0 +1,350 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.model.ScreenShotReply;
+
+import org.openqa.selenium.io.TemporaryFilesystem;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the screenshots taken during a session, so that Opera only has to send the image data of
+ * screenshots it has not sent before.
+ *
+ * The MD5 hashes of the last screenshots of an area are sent along with each request for a new
+ * screenshot of it.  When the screenshot matches one of them, Opera sends the hash alone and the
+ * image is served from the cache instead.  Hashes given by the caller are sent too, and a match
+ * with one of them is returned without image data as before.
+ *
+ * Images are kept in memory up to a number of bytes, least recently used first out.  Images pushed
+ * out of memory are written to a temporary directory if a disk size is given, and dropped
+ * otherwise.
+ */
+public class ScreenshotCache {
+
+  public static final int DEFAULT_MEMORY_SIZE = 16 * 1024 * 1024;
+
+  // The number of hashes sent for an area, and the number of areas remembered
+  private static final int MAX_HASHES_PER_AREA = 16;
+  private static final int MAX_AREAS = 256;
+
+  /**
+   * Takes a screenshot, sending the hashes of the images it may skip.
+   */
+  public interface Source {
+
+    ScreenShotReply take(String... hashes);
+
+  }
+
+  private final long memorySize;
+  private final long diskSize;
+
+  // The images, by hash, least recently used first
+  private final LinkedHashMap<String, Image> images =
+      new LinkedHashMap<String, Image>(16, 0.75f, true);
+  // The hashes of the last screenshots of each area, most recent first
+  private final LinkedHashMap<Object, LinkedList<String>> areas =
+      new LinkedHashMap<Object, LinkedList<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, LinkedList<String>> eldest) {
+          return size() > MAX_AREAS;
+        }
+      };
+
+  private long memoryUsed = 0;
+  private long diskUsed = 0;
+  private File directory = null;
+
+  public ScreenshotCache() {
+    this(DEFAULT_MEMORY_SIZE, 0);
+  }
+
+  /**
+   * @param memorySize the highest number of bytes of image data to keep in memory
+   * @param diskSize   the highest number of bytes of image data to write to disk, or 0 to drop the
+   *                   images pushed out of memory
+   */
+  public ScreenshotCache(long memorySize, long diskSize) {
+    this.memorySize = memorySize;
+    this.diskSize = diskSize;
+  }
+
+  /**
+   * Takes a screenshot of an area, filling in its image data from the cache when Opera only sends
+   * its hash.
+   *
+   * @param area   identifies the area, so that its last hashes can be sent
+   * @param source takes the screenshot
+   * @param hashes hashes known to the caller, for which no image data should be returned
+   * @return the reply of the source, with the image data filled in if it was cached
+   */
+  public synchronized ScreenShotReply take(Object area, Source source, String... hashes) {
+    String[] known = getKnownHashes(area, hashes);
+    ScreenShotReply reply = source.take(known);
+
+    String md5 = reply.getMd5();
+    if (md5 == null || md5.length() == 0) {
+      return reply;
+    }
+
+    if (hasImage(reply)) {
+      put(area, md5, reply.getPng());
+    } else if (!Arrays.asList(hashes).contains(md5)) {
+      byte[] png = get(area, md5);
+      if (png != null) {
+        reply.setPng(png);
+      } else if (known.length > hashes.length) {
+        // The image was sent as a known hash, but could not be read back
+        reply = source.take(hashes);
+        if (hasImage(reply)) {
+          put(area, reply.getMd5(), reply.getPng());
+        }
+      }
+    }
+
+    return reply;
+  }
+
+  /**
+   * Adds an image to the cache.
+   *
+   * @param area the area the image is a screenshot of
+   * @param md5  the hash of the image
+   * @param png  the image data
+   */
+  public synchronized void put(Object area, String md5, byte[] png) {
+    remember(area, md5);
+
+    Image image = images.get(md5);
+    if (image != null) {
+      return;
+    }
+
+    image = new Image(md5, png);
+    images.put(md5, image);
+    memoryUsed += image.size;
+    evict();
+  }
+
+  /**
+   * Gets an image from the cache, reading it back into memory if it was written to disk.
+   *
+   * @param area the area the image is a screenshot of
+   * @param md5  the hash of the image
+   * @return the image data, or <code>null</code> if it is not cached
+   */
+  public synchronized byte[] get(Object area, String md5) {
+    Image image = images.get(md5);
+    if (image == null) {
+      return null;
+    }
+
+    if (image.png == null) {
+      try {
+        image.png = read(image.file);
+      } catch (IOException e) {
+        remove(image);
+        return null;
+      }
+      diskUsed -= image.size;
+      image.file.delete();
+      image.file = null;
+      memoryUsed += image.size;
+    }
+
+    remember(area, md5);
+    byte[] png = image.png;
+    evict();
+    return png;
+  }
+
+  /**
+   * @return the hashes known to the caller, followed by the last hashes of the area that are still
+   *         cached
+   */
+  public synchronized String[] getKnownHashes(Object area, String... hashes) {
+    List<String> known = new ArrayList<String>(Arrays.asList(hashes));
+
+    LinkedList<String> recent = areas.get(area);
+    if (recent != null) {
+      for (String md5 : recent) {
+        if (images.containsKey(md5) && !known.contains(md5)) {
+          known.add(md5);
+        }
+      }
+    }
+
+    return known.toArray(new String[known.size()]);
+  }
+
+  /**
+   * @return the number of images cached, in memory or on disk
+   */
+  public synchronized int size() {
+    return images.size();
+  }
+
+  public synchronized long getMemoryUsed() {
+    return memoryUsed;
+  }
+
+  public synchronized long getDiskUsed() {
+    return diskUsed;
+  }
+
+  /**
+   * Drops all images and deletes the directory they were written to.
+   */
+  public synchronized void clear() {
+    images.clear();
+    areas.clear();
+    memoryUsed = 0;
+    diskUsed = 0;
+
+    if (directory != null) {
+      TemporaryFilesystem.getDefaultTmpFS().deleteTempDir(directory);
+      directory = null;
+    }
+  }
+
+  private void remember(Object area, String md5) {
+    LinkedList<String> recent = areas.get(area);
+    if (recent == null) {
+      recent = new LinkedList<String>();
+      areas.put(area, recent);
+    }
+
+    recent.remove(md5);
+    recent.addFirst(md5);
+    if (recent.size() > MAX_HASHES_PER_AREA) {
+      recent.removeLast();
+    }
+  }
+
+  /**
+   * Pushes the least recently used images out of memory until the memory bound is met, and then
+   * drops the least recently used images written to disk until the disk bound is met.
+   */
+  private void evict() {
+    Iterator<Image> oldest = images.values().iterator();
+    while (memoryUsed > memorySize && oldest.hasNext()) {
+      Image image = oldest.next();
+      if (image.png == null) {
+        continue;
+      }
+
+      memoryUsed -= image.size;
+      if (image.size <= diskSize && spill(image)) {
+        diskUsed += image.size;
+      } else {
+        oldest.remove();
+      }
+    }
+
+    oldest = images.values().iterator();
+    while (diskUsed > diskSize && oldest.hasNext()) {
+      Image image = oldest.next();
+      if (image.file != null) {
+        diskUsed -= image.size;
+        image.file.delete();
+        oldest.remove();
+      }
+    }
+  }
+
+  /**
+   * Writes an image to disk and drops its data from memory.
+   *
+   * @return whether the image was written
+   */
+  private boolean spill(Image image) {
+    if (directory == null) {
+      directory = TemporaryFilesystem.getDefaultTmpFS().createTempDir("opera-screenshots", "");
+    }
+
+    File file = new File(directory, image.md5 + ".png");
+    try {
+      FileOutputStream stream = new FileOutputStream(file);
+      try {
+        stream.write(image.png);
+      } finally {
+        stream.close();
+      }
+    } catch (IOException e) {
+      file.delete();
+      return false;
+    }
+
+    image.file = file;
+    image.png = null;
+    return true;
+  }
+
+  private void remove(Image image) {
+    images.remove(image.md5);
+    if (image.png != null) {
+      memoryUsed -= image.size;
+    } else if (image.file != null) {
+      diskUsed -= image.size;
+      image.file.delete();
+    }
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    DataInputStream stream = new DataInputStream(new FileInputStream(file));
+    try {
+      stream.readFully(data);
+    } finally {
+      stream.close();
+    }
+    return data;
+  }
+
+  private static boolean hasImage(ScreenShotReply reply) {
+    return reply.getPng() != null && reply.getPng().length > 0;
+  }
+
+  private static class Image {
+
+    private final String md5;
+    private final int size;
+    private byte[] png;
+    private File file = null;
+
+    public Image(String md5, byte[] png) {
+      this.md5 = md5;
+      this.png = png;
+      this.size = png.length;
+    }
+
+  }
+
+}
@@ -43,7 +43,7 @@ public class UmsEventHandler extends EventHandler {
 
   @Override
   public void onMessage(ConsoleMessage message) {
-    throw new UnsupportedOperationException();
+    services.onConsoleMessage(message);
   }
 
 }
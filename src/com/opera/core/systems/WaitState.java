@@ -22,24 +22,47 @@ import com.opera.core.systems.scope.protos.DesktopWmProtos.DesktopWindowInfo;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuID;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuInfo;
 import com.opera.core.systems.scope.protos.DesktopWmProtos.QuickMenuItemID;
+import com.opera.core.systems.scope.protos.EcmascriptProtos.ReadyStateChange;
 import com.opera.core.systems.scope.protos.UmsProtos.Response;
 
+import com.google.common.util.concurrent.SettableFuture;
+
 import org.openqa.selenium.WebDriverException;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 /**
  * This class handles a queue of events to be handled from multiple threads. One thread can wait for
  * events to happen while other threads can post these events by calling the on{Event} handlers.
  *
+ * Responses to commands do not go through the event queue.  Each command that expects a response
+ * registers a slot for its tag with {@link #expectResponse(int)}, which onResponse() and onError()
+ * complete directly.  Threads waiting for different tags therefore never see each other's
+ * responses.
+ *
  * @author Jan Vidar Krey <janv@opera.com>
  */
 public class WaitState {
 
   private final Logger logger = Logger.getLogger(this.getClass().getName());
-  private boolean connected;
-  private boolean waitEvents;
+  private volatile boolean connected;
+  private volatile boolean waitEvents;
 
   /**
    * Whether we should keep a note of any idle events received.
@@ -58,14 +81,33 @@ public class WaitState {
    */
   private int capturedIdleEvents = 0;
 
-  private Object lock = new Object();
+  // Guards the event queue.  Threads waiting for an event are parked on the condition, rather than
+  // holding a monitor
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition eventPosted = lock.newCondition();
+
+  // The runtimes of the documents created but not loaded yet, as told by OnReadyStateChanged, by
+  // the window they are in.  Documents whose window is not known yet are kept under UNKNOWN_WINDOW
+  // until they are placed.  Guarded by the lock
+  private final Map<Integer, Set<Integer>> loadingDocuments = new HashMap<Integer, Set<Integer>>();
+  private static final int UNKNOWN_WINDOW = -1;
+
+  // The number of windows loaded or closed so far, the count when each unplaced document was
+  // created, and the count when each window was last loaded or closed.  A document placed in a
+  // window loaded or closed after it was created is not waited for.  Guarded by the lock
+  private long settledWindows = 0;
+  private final Map<Integer, Long> documentsCreated = new HashMap<Integer, Long>();
+  private final Map<Integer, Long> windowsSettled = new HashMap<Integer, Long>();
+
+  // The ids of the signals scripts are expected to send through the console, and of those sent.
+  // Guarded by the lock
+  private final Set<String> expectedSignals = new HashSet<String>();
+  private final Set<String> receivedSignals = new HashSet<String>();
 
   // Used for profile specific workarounds
   private String profile;
 
   enum WaitResult {
-    RESPONSE,                        // Got a response
-    ERROR,                           // Got an error response
     EXCEPTION,                       // An exception occurred (STP connection is not alive)
     DISCONNECTED,                    // STP connection is disconnected
     HANDSHAKE,                       // STP Handshake
@@ -89,7 +131,6 @@ public class WaitState {
     int data;
     WaitResult waitResult;
     WebDriverException exception;
-    Response response;
     boolean seen;
     long remaining_idle_timeout;
     DesktopWindowInfo desktopWindowInfo;  // No idea if this is right but it will
@@ -116,7 +157,7 @@ public class WaitState {
      *
      * Response events:
      *
-     * BINARY_EXIT    with exit code WINDOW_LOADED  with windowID ERROR          with tag ID
+     * BINARY_EXIT    with exit code WINDOW_LOADED  with windowID
      */
     public ResultItem(WaitResult result, int data) {
       this.waitResult = result;
@@ -150,14 +191,6 @@ public class WaitState {
       logger.finest("EVENT: " + result.toString() + ", quick_menu_item=" + info.getMenuText());
     }
 
-
-    public ResultItem(Response response, int tag) {
-      this.response = response;
-      this.data = tag;
-      waitResult = WaitResult.RESPONSE;
-      logger.finest("EVENT: " + waitResult.toString() + ", data=" + data);
-    }
-
     public ResultItem(String results) {
       waitResult = WaitResult.EVENT_SELFTEST_DONE;
       selftestResults = results;
@@ -184,12 +217,16 @@ public class WaitState {
     }
   }
 
-  // Replace with BlockingQueue
   LinkedList<ResultItem> events = new LinkedList<ResultItem>();
 
+  /**
+   * Commands waiting for a response, indexed by tag.
+   */
+  private final ConcurrentMap<Integer, SettableFuture<Response>> pendingResponses =
+      new ConcurrentHashMap<Integer, SettableFuture<Response>>();
+
   enum ResponseType {
     HANDSHAKE,
-    RESPONSE,
     WINDOW_LOADED,
     REQUEST_FIRED,
     OPERA_IDLE,
@@ -218,157 +255,289 @@ public class WaitState {
       if (!connected) {
         throw new CommunicationException("Waiting aborted - not connected!");
       }
-      lock.wait(timeout);
+      eventPosted.await(timeout, TimeUnit.MILLISECONDS);
     } catch (InterruptedException e) {
       throw new WebDriverException(e);
     }
   }
 
+  /**
+   * Queues an event, and wakes up the threads waiting for one.
+   */
+  private void post(ResultItem item) {
+    lock.lock();
+    try {
+      events.add(item);
+      eventPosted.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
   void onHandshake() {
-    synchronized (lock) {
-      logger.finest("Event: onHandshake");
-      events.add(new ResultItem(WaitResult.HANDSHAKE));
-      lock.notify();
+    logger.finest("Event: onHandshake");
+    post(new ResultItem(WaitResult.HANDSHAKE));
+  }
+
+  /**
+   * Registers a command which expects a response.  This must be called before the command is sent,
+   * so that the response can not arrive before its slot exists.
+   *
+   * @param tag the tag of the command
+   * @return a future completed with the response, or with <code>null</code> if the command failed
+   */
+  Future<Response> expectResponse(int tag) {
+    SettableFuture<Response> future = SettableFuture.create();
+    pendingResponses.put(tag, future);
+
+    if (!connected) {
+      pendingResponses.remove(tag);
+      future.setException(new CommunicationException("Waiting aborted - not connected!"));
     }
+
+    return future;
   }
 
   void onResponse(int tag, Response response) {
-    synchronized (lock) {
-      logger.finest("Event: onResponse for " + tag);
-      events.add(new ResultItem(response, tag));
-      lock.notify();
-    }
+    logger.finest("Event: onResponse for " + tag);
+    completeResponse(tag, response);
   }
 
   void onError(int tag) {
-    synchronized (lock) {
-      logger.fine("Got ERROR for " + tag);
-      events.add(new ResultItem(WaitResult.ERROR, tag));
-      lock.notify();
+    logger.fine("Got ERROR for " + tag);
+    completeResponse(tag, null);
+  }
+
+  private void completeResponse(int tag, Response response) {
+    SettableFuture<Response> future = pendingResponses.remove(tag);
+    if (future == null) {
+      logger.warning("Dropping response for unknown tag " + tag);
+      return;
     }
+    future.set(response);
   }
 
-  void onException(Exception e) {
-    synchronized (lock) {
-      logger.warning("Got exception");
-      events.add(new ResultItem(new WebDriverException(e)));
-      connected = false;
-      lock.notify();
+  private void failResponses(WebDriverException cause) {
+    for (Integer tag : pendingResponses.keySet()) {
+      SettableFuture<Response> future = pendingResponses.remove(tag);
+      if (future != null) {
+        future.setException(cause);
+      }
     }
   }
 
+  void onException(Exception e) {
+    WebDriverException exception = new WebDriverException(e);
+    logger.warning("Got exception");
+    connected = false;
+    post(new ResultItem(exception));
+    failResponses(exception);
+  }
+
   void onDisconnected() {
-    synchronized (lock) {
-      logger.finest("Event: onDisconnected");
-      events.add(new ResultItem(WaitResult.DISCONNECTED));
-      connected = false;
-      lock.notify();
-    }
+    logger.finest("Event: onDisconnected");
+    connected = false;
+    post(new ResultItem(WaitResult.DISCONNECTED));
+    failResponses(new CommunicationException("Problem encountered : "
+                                             + WaitResult.DISCONNECTED.toString()));
   }
 
   void onWindowLoaded(int windowId) {
-    synchronized (lock) {
-      logger.finest("Event: onWindowLoaded");
-      events.add(new ResultItem(WaitResult.EVENT_WINDOW_LOADED, windowId));
-      lock.notify();
+    logger.finest("Event: onWindowLoaded");
+    lock.lock();
+    try {
+      // The event does not tell which documents were loaded, and the onload of some is never
+      // reported, so all of those in the window are taken as loaded
+      settleWindow(windowId);
+      post(new ResultItem(WaitResult.EVENT_WINDOW_LOADED, windowId));
+    } finally {
+      lock.unlock();
     }
   }
 
-  public void onRequest(int windowId) {
-    synchronized (lock) {
-      logger.finest("Event: onRequest");
-      events.add(new ResultItem(WaitResult.EVENT_REQUEST_FIRED, windowId));
-      lock.notify();
+  void onReadyStateChanged(int runtimeId, ReadyStateChange.State state) {
+    logger.finest("Event: onReadyStateChanged " + state + " for runtime " + runtimeId);
+    lock.lock();
+    try {
+      if (state == ReadyStateChange.State.DOM_ENVIRONMENT_CREATED) {
+        // The event does not tell the window, which is looked up by the thread waiting for it
+        removeDocument(runtimeId);
+        addDocument(UNKNOWN_WINDOW, runtimeId);
+        documentsCreated.put(runtimeId, settledWindows);
+      } else if (state == ReadyStateChange.State.AFTER_ONLOAD) {
+        removeDocument(runtimeId);
+      }
+      eventPosted.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Places a document whose window was not known in its window.  Nothing happens if the document
+   * has been loaded meanwhile, or if the window has been loaded or closed since the document was
+   * created.
+   *
+   * @param runtimeId the runtime of the document
+   * @param windowId  the window the document is in, or <code>null</code> if it is gone
+   */
+  void placeDocument(int runtimeId, Integer windowId) {
+    lock.lock();
+    try {
+      Set<Integer> unplaced = loadingDocuments.get(UNKNOWN_WINDOW);
+      if (unplaced == null || !unplaced.contains(runtimeId)) {
+        return;
+      }
+
+      Long created = documentsCreated.get(runtimeId);
+      removeDocument(runtimeId);
+      Long settled = (windowId == null) ? null : windowsSettled.get(windowId);
+      if (windowId != null && (settled == null || created == null || settled <= created)) {
+        addDocument(windowId, runtimeId);
+      }
+      eventPosted.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void addDocument(int windowId, int runtimeId) {
+    Set<Integer> documents = loadingDocuments.get(windowId);
+    if (documents == null) {
+      documents = new HashSet<Integer>();
+      loadingDocuments.put(windowId, documents);
+    }
+    documents.add(runtimeId);
+  }
+
+  private void removeDocument(int runtimeId) {
+    for (Iterator<Set<Integer>> iterator = loadingDocuments.values().iterator();
+         iterator.hasNext();) {
+      Set<Integer> documents = iterator.next();
+      if (documents.remove(runtimeId) && documents.isEmpty()) {
+        iterator.remove();
+      }
+    }
+    documentsCreated.remove(runtimeId);
+  }
+
+  /**
+   * Takes the documents in a window as loaded, including those not placed yet.
+   */
+  private void settleWindow(int windowId) {
+    loadingDocuments.remove(windowId);
+    windowsSettled.put(windowId, ++settledWindows);
+  }
+
+  /**
+   * Registers a signal which a script will send.  This must be called before the script is run, so
+   * that the signal can not be missed.
+   *
+   * @param id the id of the signal
+   */
+  void expectScriptSignal(String id) {
+    lock.lock();
+    try {
+      expectedSignals.add(id);
+    } finally {
+      lock.unlock();
     }
   }
 
+  /**
+   * Forgets a signal registered with {@link #expectScriptSignal(String)} which will not be waited
+   * for.
+   *
+   * @param id the id of the signal
+   */
+  void cancelScriptSignal(String id) {
+    lock.lock();
+    try {
+      expectedSignals.remove(id);
+      receivedSignals.remove(id);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void onScriptSignal(String id) {
+    logger.finest("Event: onScriptSignal " + id);
+    lock.lock();
+    try {
+      if (expectedSignals.contains(id)) {
+        receivedSignals.add(id);
+        eventPosted.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void onRequest(int windowId) {
+    logger.finest("Event: onRequest");
+    post(new ResultItem(WaitResult.EVENT_REQUEST_FIRED, windowId));
+  }
+
   void onWindowClosed(int windowId) {
-    synchronized (lock) {
-      logger.finest("Event: onWindowClosed");
-      events.add(new ResultItem(WaitResult.EVENT_WINDOW_CLOSED, windowId));
-      lock.notify();
+    logger.finest("Event: onWindowClosed");
+    lock.lock();
+    try {
+      // Documents in the closed window will never be loaded
+      settleWindow(windowId);
+      post(new ResultItem(WaitResult.EVENT_WINDOW_CLOSED, windowId));
+    } finally {
+      lock.unlock();
     }
   }
 
   void onOperaIdle() {
-    synchronized (lock) {
-      logger.finest("Event: onOperaIdle");
-      events.add(new ResultItem(WaitResult.EVENT_OPERA_IDLE, 0));// 0 is
-      // important to match later
-      lock.notify();
-    }
+    logger.finest("Event: onOperaIdle");
+    post(new ResultItem(WaitResult.EVENT_OPERA_IDLE, 0));  // 0 is important to match later
   }
 
   void onDesktopWindowClosed(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowClosed");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_CLOSED, info));
-      lock.notify();
-    }
+    logger.finest("Event: onDesktopWindowClosed");
+    post(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_CLOSED, info));
   }
 
   void onDesktopWindowActivated(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowActivated");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_ACTIVATED, info));
-      lock.notify();
-    }
+    logger.finest("Event: onDesktopWindowActivated");
+    post(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_ACTIVATED, info));
   }
 
   void onDesktopWindowShown(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowShown");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_SHOWN, info));
-      lock.notify();
-    }
+    logger.finest("Event: onDesktopWindowShown");
+    post(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_SHOWN, info));
   }
 
   void onDesktopWindowUpdated(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowUpdated");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_UPDATED, info));
-      lock.notify();
-    }
+    logger.finest("Event: onDesktopWindowUpdated");
+    post(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_UPDATED, info));
   }
 
   void onDesktopWindowLoaded(DesktopWindowInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onDesktopWindowLoaded");
-      events.add(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_LOADED, info));
-      lock.notify();
-    }
+    logger.finest("Event: onDesktopWindowLoaded");
+    post(new ResultItem(WaitResult.EVENT_DESKTOP_WINDOW_LOADED, info));
   }
 
   void onQuickMenuShown(QuickMenuInfo info) {
-    synchronized (lock) {
-      logger.finest("Event: onQuickMenuShown");
-      events.add(new ResultItem(WaitResult.EVENT_QUICK_MENU_SHOWN, info));
-      lock.notify();
-    }
+    logger.finest("Event: onQuickMenuShown");
+    post(new ResultItem(WaitResult.EVENT_QUICK_MENU_SHOWN, info));
   }
 
   void onQuickMenuClosed(QuickMenuID id) {
-    synchronized (lock) {
-      logger.finest("Event: onQuickMenuClosed");
-      events.add(new ResultItem(WaitResult.EVENT_QUICK_MENU_CLOSED, id));
-      lock.notify();
-    }
+    logger.finest("Event: onQuickMenuClosed");
+    post(new ResultItem(WaitResult.EVENT_QUICK_MENU_CLOSED, id));
   }
 
   void onQuickMenuItemPressed(QuickMenuItemID menuItemID) {
-    synchronized (lock) {
-      logger.finest("Event: onQuickMenuItemPressed");
-      events.add(new ResultItem(WaitResult.EVENT_QUICK_MENU_ITEM_PRESSED, menuItemID));
-      lock.notify();
-    }
+    logger.finest("Event: onQuickMenuItemPressed");
+    post(new ResultItem(WaitResult.EVENT_QUICK_MENU_ITEM_PRESSED, menuItemID));
   }
 
   void onSelftestDone(String results) {
-    synchronized (lock) {
-      logger.finest("Event: onSelftestDone");
-      events.add(new ResultItem(results));
-      lock.notify();
-    }
+    logger.finest("Event: onSelftestDone");
+    post(new ResultItem(results));
   }
 
   private ResultItem getResult() {
@@ -379,10 +548,11 @@ public class WaitState {
     // Test if we are listening to wait events
     // We don't want to remove them from the list while we are
     if (waitEvents) {
-      ResultItem result_item = events.getFirst();
-      while (true) {
+      Iterator<ResultItem> iterator = events.iterator();
+      while (iterator.hasNext()) {
+        ResultItem result_item = iterator.next();
         if (!result_item.isEventToWaitFor()) {
-          events.remove(result_item);
+          iterator.remove();
           return result_item;
         }
 
@@ -390,14 +560,8 @@ public class WaitState {
           result_item.seen = true;
           return result_item;
         }
-
-        int index = events.indexOf(result_item);
-        if (index + 1 >= events.size()) {
-          return null;
-        }
-
-        result_item = events.get(index + 1);
       }
+      return null;
     }
 
     return events.removeFirst();
@@ -459,7 +623,8 @@ public class WaitState {
       }
     }
 
-    synchronized (lock) {
+    lock.lock();
+    try {
       while (true) {
 
         ResultItem result = pollResultItem(timeout, type == ResponseType.OPERA_IDLE);
@@ -473,22 +638,6 @@ public class WaitState {
             }
             break;
 
-          case RESPONSE:
-            if (result.data == match && type == ResponseType.RESPONSE) {
-              return result;
-            } else if (type == ResponseType.HANDSHAKE) {
-              throw new CommunicationException("Expecting handshake");
-            }
-            break;
-
-          case ERROR:
-            if (result.data == match && type == ResponseType.RESPONSE) {
-              return null;
-            } else if (type == ResponseType.HANDSHAKE) {
-              throw new CommunicationException("Expecting handshake");
-            }
-            break;
-
           case EXCEPTION:
             throw result.exception;
 
@@ -659,6 +808,8 @@ public class WaitState {
             break;
         }
       }
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -670,17 +821,149 @@ public class WaitState {
     waitAndParseResult(timeout, windowId, null, ResponseType.WINDOW_LOADED);
   }
 
+  /**
+   * Looks up the windows of documents for {@link WaitState#waitForPageLoad(int, long, long,
+   * DocumentLocator)}.
+   */
+  interface DocumentLocator {
+
+    /**
+     * @param runtimeId the runtime of the document
+     * @return the window the document is in, or <code>null</code> if it is gone
+     */
+    Integer getWindowId(int runtimeId);
+
+  }
+
+  /**
+   * Waits for the documents being loaded in a window to finish loading, as told by
+   * OnReadyStateChanged and OnWindowLoaded.  If no document is being loaded, waits a short while
+   * for one to be created, as a load started by the last action may not have got that far yet.
+   *
+   * The windows of new documents are looked up with the locator, outside of the lock so that events
+   * keep coming in meanwhile.  Nothing else is sent to Opera while waiting.
+   *
+   * @param windowId     the window to wait for
+   * @param startTimeout time in milliseconds to wait for a document to be created
+   * @param timeout      time in milliseconds to wait for the documents to be loaded
+   * @param locator      looks up the windows of new documents
+   * @return whether the documents were loaded in time
+   */
+  public boolean waitForPageLoad(int windowId, long startTimeout, long timeout,
+                                 DocumentLocator locator) {
+    long start = System.currentTimeMillis();
+
+    lock.lock();
+    try {
+      long remaining = startTimeout;
+      while (loadingDocuments.isEmpty() && remaining > 0) {
+        internalWait(remaining);
+        remaining = start + startTimeout - System.currentTimeMillis();
+      }
+
+      while (true) {
+        placeDocuments(locator);
+        if (!loadingDocuments.containsKey(windowId)) {
+          return true;
+        }
+
+        remaining = start + timeout - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        internalWait(remaining);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Places the documents whose window is not known yet.  Must be called with the lock held, which
+   * is released while the windows are looked up.
+   */
+  private void placeDocuments(DocumentLocator locator) {
+    Set<Integer> unplaced = loadingDocuments.get(UNKNOWN_WINDOW);
+    if (unplaced == null) {
+      return;
+    }
+
+    Map<Integer, Integer> windows = new HashMap<Integer, Integer>();
+    List<Integer> runtimeIds = new ArrayList<Integer>(unplaced);
+    lock.unlock();
+    try {
+      for (Integer runtimeId : runtimeIds) {
+        windows.put(runtimeId, locator.getWindowId(runtimeId));
+      }
+    } finally {
+      lock.lock();
+    }
+
+    for (Map.Entry<Integer, Integer> entry : windows.entrySet()) {
+      placeDocument(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Waits for a script to send a signal registered with {@link #expectScriptSignal(String)}.  The
+   * signal is forgotten when this returns, whether it was received or not.
+   *
+   * @param id      the id of the signal
+   * @param timeout time in milliseconds to wait for the signal
+   * @return whether the signal was received in time
+   */
+  public boolean waitForScriptSignal(String id, long timeout) {
+    long start = System.currentTimeMillis();
+
+    lock.lock();
+    try {
+      long remaining = timeout;
+      while (!receivedSignals.contains(id) && remaining > 0) {
+        internalWait(remaining);
+        remaining = start + timeout - System.currentTimeMillis();
+      }
+      return receivedSignals.remove(id);
+    } finally {
+      expectedSignals.remove(id);
+      lock.unlock();
+    }
+  }
+
   /**
    * Enables the capturing on OperaIdle events. <p/> Sometimes when executing a command OperaIdle
    * events will fire before the response is received for the sent command. This results in missing
    * the Idle events, and later probably hitting a timeout. <p/> To prevent this you can call this
    * method which will enable the tracking of any Idle events received between now and when you call
    * waitForOperaIdle(). If Idle events have been received then waitForOperaIdle() will return
-   * immediately.
+   * immediately. <p/> Load and idle events received before this call belong to earlier actions and
+   * are dropped, so that they do not end the wait for this one.
    */
   public void captureOperaIdle() {
     logger.finer("captureIdleEvents is now true!");
-    captureIdleEvents = true;
+    lock.lock();
+    try {
+      captureIdleEvents = true;
+      discardLoadEvents();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops the queued load, close and idle events.  These are only consumed by a wait for them, so
+   * without this the ones no one waited for would pile up for the whole session.
+   */
+  private void discardLoadEvents() {
+    Iterator<ResultItem> iterator = events.iterator();
+    while (iterator.hasNext()) {
+      switch (iterator.next().waitResult) {
+        case EVENT_WINDOW_LOADED:
+        case EVENT_WINDOW_CLOSED:
+        case EVENT_OPERA_IDLE:
+          iterator.remove();
+          break;
+      }
+    }
   }
 
   /**
@@ -707,14 +990,29 @@ public class WaitState {
     waitAndParseResult(timeout, 0/*0 = no window id!*/, null, ResponseType.OPERA_IDLE);
   }
 
-  public Response waitFor(int tag, long timeout) {
-    ResultItem item = waitAndParseResult(timeout, tag, null, ResponseType.RESPONSE);
-
-    if (item != null) {
-      return item.response;
+  /**
+   * Waits for the response to a command registered with {@link #expectResponse(int)}.
+   *
+   * @param response the future returned when registering the command
+   * @param timeout  time in milliseconds to wait for the response
+   * @return the response, or <code>null</code> if the command failed
+   */
+  public Response waitFor(Future<Response> response, long timeout) {
+    try {
+      return response.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      response.cancel(false);
+      pendingResponses.values().remove(response);
+      throw new ResponseNotReceivedException("No response in a timely fashion.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new WebDriverException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof WebDriverException) {
+        throw (WebDriverException) e.getCause();
+      }
+      throw new WebDriverException(e.getCause());
     }
-
-    return null;
   }
 
   public void waitForRequest(int windowId, long timeout) {
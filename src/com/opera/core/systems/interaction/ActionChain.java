@@ -0,0 +1,171 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.interaction;
+
+import org.openqa.selenium.WebElement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The user interactions of an {@link OperaAction} compiled into a list of steps, which lets the
+ * driver look up the positions of all the elements involved at once and send the key and mouse
+ * actions back-to-back.
+ *
+ * Interactions which can not be compiled are kept as they are, and are executed on their own in
+ * their turn.
+ */
+public class ActionChain {
+
+  public enum Kind {
+    KEY_DOWN,
+    KEY_UP,
+    KEY,
+    TYPE,
+    RELEASE_KEYS,
+    MOVE_TO,
+    BUTTON_DOWN,
+    BUTTON_UP,
+    CLICK,
+    INTERACTION
+  }
+
+  public static class Step {
+
+    private final Kind kind;
+    private final String key;
+    private final WebElement element;
+    private final UserInteraction interaction;
+
+    private Step(Kind kind, String key, WebElement element, UserInteraction interaction) {
+      this.kind = kind;
+      this.key = key;
+      this.element = element;
+      this.interaction = interaction;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    /**
+     * @return the key pressed or released, or the string typed
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return the element the mouse acts on
+     */
+    public WebElement getElement() {
+      return element;
+    }
+
+    /**
+     * @return the interaction which could not be compiled
+     */
+    public UserInteraction getInteraction() {
+      return interaction;
+    }
+
+  }
+
+  private final List<Step> steps = new ArrayList<Step>();
+
+  public ActionChain(OperaAction action) {
+    for (UserInteraction interaction : action.getActions()) {
+      if (interaction instanceof CompilableInteraction) {
+        ((CompilableInteraction) interaction).compile(this);
+      } else {
+        interaction(interaction);
+      }
+    }
+  }
+
+  /**
+   * Adds an interaction which is executed on its own in its turn.
+   */
+  public void interaction(UserInteraction interaction) {
+    steps.add(new Step(Kind.INTERACTION, null, null, interaction));
+  }
+
+  public void keyDown(String key) {
+    steps.add(new Step(Kind.KEY_DOWN, key, null, null));
+  }
+
+  public void keyUp(String key) {
+    steps.add(new Step(Kind.KEY_UP, key, null, null));
+  }
+
+  public void key(String key) {
+    steps.add(new Step(Kind.KEY, key, null, null));
+  }
+
+  public void type(String using) {
+    if (using == null) {
+      throw new NullPointerException("You must provide something to type");
+    }
+    if (using.length() == 0) {
+      throw new IllegalArgumentException("Can't type empty string");
+    }
+    steps.add(new Step(Kind.TYPE, using, null, null));
+  }
+
+  public void releaseKeys() {
+    steps.add(new Step(Kind.RELEASE_KEYS, null, null, null));
+  }
+
+  public void moveTo(WebElement element) {
+    steps.add(new Step(Kind.MOVE_TO, null, element, null));
+  }
+
+  public void buttonDown(WebElement element) {
+    steps.add(new Step(Kind.BUTTON_DOWN, null, element, null));
+  }
+
+  public void buttonUp(WebElement element) {
+    steps.add(new Step(Kind.BUTTON_UP, null, element, null));
+  }
+
+  public void click(WebElement element) {
+    steps.add(new Step(Kind.CLICK, null, element, null));
+  }
+
+  public List<Step> getSteps() {
+    return Collections.unmodifiableList(steps);
+  }
+
+  /**
+   * @param from the index of the first step to look at
+   * @return the elements the mouse acts on from the given step on, in the order they are first
+   *         acted on
+   */
+  public List<WebElement> getElements(int from) {
+    Set<WebElement> elements = new LinkedHashSet<WebElement>();
+    for (Step step : steps.subList(from, steps.size())) {
+      if (step.getElement() != null) {
+        elements.add(step.getElement());
+      }
+    }
+    return new ArrayList<WebElement>(elements);
+  }
+
+}
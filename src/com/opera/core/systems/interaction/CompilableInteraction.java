@@ -0,0 +1,27 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.interaction;
+
+/**
+ * A user interaction which can be compiled into an {@link ActionChain}, so that it is sent to Opera
+ * together with the other interactions of the chain instead of on its own.
+ */
+public interface CompilableInteraction extends UserInteraction {
+
+  void compile(ActionChain chain);
+
+}
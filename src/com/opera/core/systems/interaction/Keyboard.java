@@ -26,14 +26,17 @@ import org.openqa.selenium.WebDriver;
  *
  * @author Deniz Turkoglu <denizt@opera.com>
  */
-public abstract class Keyboard implements UserInteraction {
+public abstract class Keyboard implements CompilableInteraction {
 
   public static Keyboard keyDown(final Keys keys) {
     return new Keyboard() {
 
       public void execute(WebDriver driver) {
-        String key = OperaKeys.get(keys.name());
-        keyDown(key);
+        ((OperaDriver) driver).keyDown(OperaKeys.get(keys.name()));
+      }
+
+      public void compile(ActionChain chain) {
+        chain.keyDown(OperaKeys.get(keys.name()));
       }
 
     };
@@ -43,8 +46,11 @@ public abstract class Keyboard implements UserInteraction {
     return new Keyboard() {
 
       public void execute(WebDriver driver) {
-        String key = OperaKeys.get(keys.name());
-        keyUp(key);
+        ((OperaDriver) driver).keyUp(OperaKeys.get(keys.name()));
+      }
+
+      public void compile(ActionChain chain) {
+        chain.keyUp(OperaKeys.get(keys.name()));
       }
 
     };
@@ -57,6 +63,10 @@ public abstract class Keyboard implements UserInteraction {
         ((OperaDriver) driver).keyDown(key);
       }
 
+      public void compile(ActionChain chain) {
+        chain.keyDown(key);
+      }
+
     };
   }
 
@@ -67,6 +77,10 @@ public abstract class Keyboard implements UserInteraction {
         ((OperaDriver) driver).keyUp(key);
       }
 
+      public void compile(ActionChain chain) {
+        chain.keyUp(key);
+      }
+
     };
   }
 
@@ -74,8 +88,11 @@ public abstract class Keyboard implements UserInteraction {
     return new Keyboard() {
 
       public void execute(WebDriver driver) {
-        String key = OperaKeys.get(keys.name());
-        key(key);
+        ((OperaDriver) driver).key(OperaKeys.get(keys.name()));
+      }
+
+      public void compile(ActionChain chain) {
+        chain.key(OperaKeys.get(keys.name()));
       }
 
     };
@@ -88,6 +105,10 @@ public abstract class Keyboard implements UserInteraction {
         ((OperaDriver) driver).key(key);
       }
 
+      public void compile(ActionChain chain) {
+        chain.key(key);
+      }
+
     };
   }
 
@@ -97,6 +118,10 @@ public abstract class Keyboard implements UserInteraction {
         ((OperaDriver) driver).type(using);
       }
 
+      public void compile(ActionChain chain) {
+        chain.type(using);
+      }
+
     };
   }
 
@@ -105,6 +130,10 @@ public abstract class Keyboard implements UserInteraction {
       public void execute(WebDriver driver) {
         ((OperaDriver) driver).releaseKeys();
       }
+
+      public void compile(ActionChain chain) {
+        chain.releaseKeys();
+      }
     };
   }
 
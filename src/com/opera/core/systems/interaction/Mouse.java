@@ -26,7 +26,7 @@ import org.openqa.selenium.WebElement;
  *
  * @author Deniz Turkoglu <denizt@opera.com>
  */
-public abstract class Mouse implements UserInteraction {
+public abstract class Mouse implements CompilableInteraction {
 
   public static Mouse moveOn(final WebElement element) {
     return new Mouse() {
@@ -35,6 +35,10 @@ public abstract class Mouse implements UserInteraction {
         ((OperaWebElement) element).mouseOver();
       }
 
+      public void compile(ActionChain chain) {
+        chain.moveTo(element);
+      }
+
     };
   }
 
@@ -44,6 +48,10 @@ public abstract class Mouse implements UserInteraction {
       public void execute(WebDriver driver) {
         element.click();
       }
+
+      public void compile(ActionChain chain) {
+        chain.click(element);
+      }
     };
   }
 
@@ -53,6 +61,10 @@ public abstract class Mouse implements UserInteraction {
       public void execute(WebDriver driver) {
         ((OperaWebElement) element).mouseDown();
       }
+
+      public void compile(ActionChain chain) {
+        chain.buttonDown(element);
+      }
     };
   }
 
@@ -62,6 +74,10 @@ public abstract class Mouse implements UserInteraction {
       public void execute(WebDriver driver) {
         ((OperaWebElement) element).mouseUp();
       }
+
+      public void compile(ActionChain chain) {
+        chain.buttonUp(element);
+      }
     };
   }
 
@@ -100,7 +100,11 @@ public class Canvas {
 
   @Override
   public int hashCode() {
-    return super.hashCode();
+    int result = x;
+    result = 31 * result + y;
+    result = 31 * result + width;
+    result = 31 * result + height;
+    return result;
   }
 
   @Override
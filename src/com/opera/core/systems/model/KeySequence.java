@@ -0,0 +1,147 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.model;
+
+import com.opera.core.systems.scope.internal.OperaKeys;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A sequence of key presses and releases, compiled into "_keydown" and "_keyup" actions to be sent
+ * to Opera together.
+ *
+ * The sequence keeps track of which keys are held down as it grows, starting from the keys held
+ * down when it was created, so modifiers pressed earlier in the sequence apply to the keys typed
+ * later in it exactly as if every key had been sent on its own.
+ */
+public class KeySequence {
+
+  public static final String KEY_DOWN = "_keydown";
+  public static final String KEY_UP = "_keyup";
+
+  // The action names and their keys, one after the other
+  private final List<String> actions = new ArrayList<String>();
+  // Lower-case names of the keys held down
+  private final Set<String> pressed = new LinkedHashSet<String>();
+
+  /**
+   * @param pressedKeys the names of the keys held down before the sequence
+   */
+  public KeySequence(Collection<String> pressedKeys) {
+    for (String key : pressedKeys) {
+      pressed.add(key.toLowerCase());
+    }
+  }
+
+  /**
+   * Presses and immediately releases a key.
+   */
+  public KeySequence press(String key) {
+    add(KEY_DOWN, key);
+    add(KEY_UP, key);
+    return this;
+  }
+
+  /**
+   * Presses and holds a key.
+   */
+  public KeySequence down(String key) {
+    add(KEY_DOWN, key);
+    pressed.add(key.toLowerCase());
+    return this;
+  }
+
+  /**
+   * Releases a key.
+   */
+  public KeySequence up(String key) {
+    add(KEY_UP, key);
+    pressed.remove(key.toLowerCase());
+    return this;
+  }
+
+  /**
+   * Types a string, holding shift for capitals unless it is already held down.  If shift is held
+   * down the whole string is typed in upper case.
+   */
+  public KeySequence type(String text) {
+    String shift = OperaKeys.SHIFT.getValue();
+
+    if (isPressed(shift)) {
+      text = text.toUpperCase();
+    }
+
+    for (int i = 0; i < text.length(); ++i) {
+      char ch = text.charAt(i);
+      if (Character.isUpperCase(ch) && !isPressed(shift)) {
+        down(shift);
+        press(String.valueOf(ch));
+        up(shift);
+      } else {
+        press(String.valueOf(ch));
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Releases all the keys held down.
+   */
+  public KeySequence releaseAll() {
+    for (String key : new ArrayList<String>(pressed)) {
+      up(key);
+    }
+    return this;
+  }
+
+  public boolean isPressed(String key) {
+    return pressed.contains(key.toLowerCase());
+  }
+
+  /**
+   * @return the lower-case names of the keys held down at the end of the sequence
+   */
+  public Set<String> getPressedKeys() {
+    return Collections.unmodifiableSet(pressed);
+  }
+
+  /**
+   * @return the action names and their keys, one after the other
+   */
+  public List<String> getActions() {
+    return Collections.unmodifiableList(actions);
+  }
+
+  public int size() {
+    return actions.size() / 2;
+  }
+
+  public boolean isEmpty() {
+    return actions.isEmpty();
+  }
+
+  private void add(String action, String key) {
+    actions.add(action);
+    actions.add(key);
+  }
+
+}
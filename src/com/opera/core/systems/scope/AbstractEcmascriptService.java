@@ -3,14 +3,24 @@ package com.opera.core.systems.scope;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
 
+import com.opera.core.systems.ElementHandles;
+import com.opera.core.systems.OperaAtoms;
 import com.opera.core.systems.OperaDriver;
 import com.opera.core.systems.ScopeServices;
-import com.opera.core.systems.model.RuntimeNode;
 import com.opera.core.systems.scope.internal.OperaIntervals;
 import com.opera.core.systems.scope.services.IEcmaScriptDebugger;
 import com.opera.core.systems.scope.services.IWindowManager;
@@ -30,8 +40,23 @@ public abstract class AbstractEcmascriptService extends AbstractService
   protected int activeWindowId;
 
   protected OperaDriver driver;
+  protected ElementHandles elementHandles;
 
-  protected RuntimeNode root;
+  /// The object holding the atoms installed in a runtime.
+  protected static final String ATOMS_OBJECT = "__wd";
+  /// Matches the handles of atoms in a script, capturing the name of the atom.
+  private static final Pattern ATOM_HANDLE = Pattern.compile(Pattern.quote(ATOMS_OBJECT)
+                                                             + "\\.(\\w+)");
+  /// The atoms, by the name they are installed as.
+  private static final Map<String, OperaAtoms> ATOMS_BY_NAME = new HashMap<String, OperaAtoms>();
+  static {
+    for (OperaAtoms atom : OperaAtoms.values()) {
+      ATOMS_BY_NAME.put(atomName(atom), atom);
+    }
+  }
+  /// The atoms installed so far, by runtime id.
+  private final ConcurrentMap<Integer, Set<OperaAtoms>> installedAtoms =
+      new ConcurrentHashMap<Integer, Set<OperaAtoms>>();
 
   public AbstractEcmascriptService(ScopeServices services, String version) {
     super(services, version);
@@ -147,6 +172,116 @@ public abstract class AbstractEcmascriptService extends AbstractService
     return canParse;
   }
 
+  public String getAtom(OperaAtoms atom) {
+    installAtom(atom, getRuntimeId());
+    return ATOMS_OBJECT + "." + atomName(atom);
+  }
+
+  public abstract Object executeScript(String using, boolean responseExpected, int runtimeId);
+
+  /**
+   * Installs an atom in a runtime, unless it is known to be installed already.  The atom is only
+   * known to be installed once the install script has reported it as a function, so an install
+   * which failed is tried again the next time the atom is used.
+   */
+  private void installAtom(OperaAtoms atom, int runtimeId) {
+    Set<OperaAtoms> atoms = getInstalledAtoms(runtimeId);
+    if (atoms.contains(atom)) {
+      return;
+    }
+
+    Object type = executeScript("typeof ((window." + ATOMS_OBJECT + " = window." + ATOMS_OBJECT
+                                + " || {})." + atomName(atom) + " = " + atom.getValue() + ")",
+                                true, runtimeId);
+    if ("function".equals(type)) {
+      atoms.add(atom);
+    }
+  }
+
+  private Set<OperaAtoms> getInstalledAtoms(int runtimeId) {
+    Set<OperaAtoms> atoms = installedAtoms.get(runtimeId);
+    if (atoms == null) {
+      Set<OperaAtoms> newAtoms = Collections.synchronizedSet(EnumSet.noneOf(OperaAtoms.class));
+      atoms = installedAtoms.putIfAbsent(runtimeId, newAtoms);
+      if (atoms == null) {
+        atoms = newAtoms;
+      }
+    }
+    return atoms;
+  }
+
+  /**
+   * Installs the atoms a failed script refers to again, if the page has deleted or overwritten them
+   * since they were installed.  Scripts referring to atoms cost one extra check when they throw.
+   *
+   * @param script    the script which threw an exception
+   * @param runtimeId the runtime the script ran in
+   * @return whether the atoms were installed again, in which case the script should be retried
+   */
+  protected boolean reinstallAtoms(String script, int runtimeId) {
+    Set<OperaAtoms> used = EnumSet.noneOf(OperaAtoms.class);
+    Matcher matcher = ATOM_HANDLE.matcher(script);
+    while (matcher.find()) {
+      OperaAtoms atom = ATOMS_BY_NAME.get(matcher.group(1));
+      if (atom != null) {
+        used.add(atom);
+      }
+    }
+
+    if (used.isEmpty()) {
+      return false;
+    }
+
+    StringBuilder check = new StringBuilder("(function(){var atoms = window." + ATOMS_OBJECT
+                                            + "; return !atoms");
+    for (OperaAtoms atom : used) {
+      check.append(" || typeof atoms.").append(atomName(atom)).append(" != 'function'");
+    }
+    check.append(";})()");
+
+    if (!Boolean.TRUE.equals(executeScript(check.toString(), true, runtimeId))) {
+      return false;
+    }
+
+    Set<OperaAtoms> atoms = getInstalledAtoms(runtimeId);
+    atoms.removeAll(used);
+    for (OperaAtoms atom : used) {
+      installAtom(atom, runtimeId);
+    }
+    return atoms.containsAll(used);
+  }
+
+  /**
+   * Gets the name an atom is installed as, GET_TEXT becomes getText.
+   */
+  private static String atomName(OperaAtoms atom) {
+    StringBuilder name = new StringBuilder();
+    for (String word : atom.name().toLowerCase().split("_")) {
+      if (name.length() == 0) {
+        name.append(word);
+      } else {
+        name.append(Character.toUpperCase(word.charAt(0))).append(word.substring(1));
+      }
+    }
+    return name.toString();
+  }
+
+  /**
+   * Forgets the atoms installed in a runtime, as the runtime is gone or has been replaced.
+   *
+   * @param runtimeId the id of the runtime
+   */
+  protected void forgetAtoms(int runtimeId) {
+    installedAtoms.remove(runtimeId);
+  }
+
+  /**
+   * Forgets the atoms installed in all runtimes.
+   */
+  protected void forgetAtoms() {
+    installedAtoms.clear();
+  }
+
   public void cleanUpRuntimes() {
     int windowId = windowManager.getActiveWindowId();
     cleanUpRuntimes(windowId);
@@ -155,4 +290,18 @@ public abstract class AbstractEcmascriptService extends AbstractService
   public void setDriver(OperaDriver driver) {
     this.driver = driver;
   }
+
+  public void setElementHandles(ElementHandles handles) {
+    elementHandles = handles;
+  }
+
+  /**
+   * Hands the objects of the elements collected since the last script to {@link
+   * #releaseObject(int)}.
+   */
+  protected void releaseCollectedElements() {
+    if (elementHandles != null) {
+      elementHandles.releaseCollected();
+    }
+  }
 }
@@ -33,6 +33,8 @@ import org.openqa.selenium.WebDriverException;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -98,6 +100,25 @@ public abstract class AbstractService {
     return services.executeCommand(command, builder, timeout);
   }
 
+  /**
+   * Sends a command without waiting for its response, allowing several independent commands to be
+   * in flight at the same time.  Wait for the responses using {@link #waitForResponses(List)}.
+   */
+  public Future<Response> executeCommandAsync(ICommand command, Builder<?> builder) {
+    return services.executeCommandAsync(command, builder);
+  }
+
+  /**
+   * Waits for the responses of commands sent with {@link #executeCommandAsync(ICommand,
+   * Builder)}.
+   *
+   * @return the responses in the same order as the futures, <code>null</code> for failed commands
+   */
+  public List<Response> waitForResponses(List<Future<Response>> responses) {
+    return services.waitForResponses(responses,
+                                     OperaIntervals.DEFAULT_RESPONSE_TIMEOUT.getValue());
+  }
+
   /**
    * Query a collection with JXPath and return value of node
    *
@@ -23,12 +23,15 @@ public enum OperaIntervals {
 
   RESPONSE_TIMEOUT(5000),
   PAGE_LOAD_TIMEOUT(30000),
+  PAGE_LOAD_START(5),
   WINDOW_EVENT_TIMEOUT(5000),
   OPERA_IDLE_TIMEOUT(5000),
   POLL_INVERVAL(10),
   SCRIPT_RETRY(5),
   SCRIPT_RETRY_INTERVAL(50),
   EXEC_SLEEP(100),
+  EXEC_MIN_SLEEP(5),
+  ELEMENT_SIGNAL_WAIT(500),
   HANDSHAKE_TIMEOUT(30000),
   SERVER_PORT(7001),
   ENABLE_DEBUGGER(1),
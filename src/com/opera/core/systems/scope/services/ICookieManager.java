@@ -18,6 +18,7 @@ package com.opera.core.systems.scope.services;
 
 import org.openqa.selenium.Cookie;
 
+import java.util.Collection;
 import java.util.Set;
 
 /**
@@ -31,6 +32,14 @@ public interface ICookieManager {
 
   void removeCookie(String domain, String path, String name);
 
+  /**
+   * Removes several cookies at once, without waiting for each removal to be acknowledged before
+   * sending the next one.
+   *
+   * @param cookies the cookies to remove
+   */
+  void removeCookies(Collection<Cookie> cookies);
+
   void removeAllCookies();
 
   int getMaxCookies();
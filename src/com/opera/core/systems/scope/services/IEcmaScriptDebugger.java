@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.opera.core.systems.scope.services;
 
+import com.opera.core.systems.ElementHandles;
+import com.opera.core.systems.OperaAtoms;
 import com.opera.core.systems.OperaDriver;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ReadyStateChange;
 import com.opera.core.systems.scope.protos.EsdbgProtos.RuntimeInfo;
@@ -30,6 +32,12 @@ public interface IEcmaScriptDebugger {
    */
   void setDriver(OperaDriver driver);
 
+  /**
+   * Set the handles of the objects referred to by elements.  The objects of elements which have
+   * been collected are released before each script.
+   */
+  void setElementHandles(ElementHandles handles);
+
   int getRuntimeId();
 
   /**
@@ -43,6 +51,14 @@ public interface IEcmaScriptDebugger {
    */
   void removeRuntime(int runtimeId);
 
+  /**
+   * Looks up the window a runtime is in, asking Opera if the runtime is not known yet.
+   *
+   * @param runtimeId the id of the runtime
+   * @return the id of the window, or <code>null</code> if there is no such runtime
+   */
+  Integer getWindowId(int runtimeId);
+
   /**
    * Adds a runtime to the list of runtimes maintained in the service (STP/1 only)
    */
@@ -111,6 +127,17 @@ public interface IEcmaScriptDebugger {
 
   Integer executeScriptOnObject(String using, int objectId);
 
+  /**
+   * Executes a script and returns its result, whatever its type, from the one reply.  Objects are
+   * returned as a {@link com.opera.core.systems.model.ScriptResult} holding the object id and
+   * class name.
+   *
+   * @param using    script to execute, with reference to the object "locator"
+   * @param objectId the object to pass as "locator", or <code>null</code> for none
+   * @return the result of the script
+   */
+  Object executeScriptForResult(String using, Integer objectId);
+
   /**
    * Changes the frame by index
    */
@@ -175,6 +202,16 @@ public interface IEcmaScriptDebugger {
 
   void resetFramePath();
 
+  /**
+   * Makes sure the given atom is defined in the current runtime, installing it if this is the first
+   * time it is used there.  The atom is installed once per runtime, so scripts can call it by a
+   * short handle instead of carrying its whole source.
+   *
+   * @param atom the atom to use
+   * @return the expression referring to the installed atom, for example <code>__wd.getText</code>
+   */
+  String getAtom(OperaAtoms atom);
+
   String executeJavascript(String using, Integer windowId);
 
   Object examineScriptResult(Integer id);
@@ -17,12 +17,16 @@ limitations under the License.
 package com.opera.core.systems.scope.services;
 
 import com.opera.core.systems.model.Canvas;
+import com.opera.core.systems.model.KeySequence;
 import com.opera.core.systems.model.ScreenShotReply;
 import com.opera.core.systems.scope.internal.OperaColors;
 import com.opera.core.systems.scope.internal.OperaMouseKeys;
 import com.opera.core.systems.scope.protos.ExecProtos.Area;
+import com.opera.core.systems.scope.protos.UmsProtos.Response;
 
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 public interface IOperaExec {
 
@@ -72,6 +76,37 @@ public interface IOperaExec {
    */
   void key(String key, boolean up);
 
+  /**
+   * Start a key sequence from the keys currently held down.
+   */
+  KeySequence keySequence();
+
+  /**
+   * Send the key presses and releases of a sequence together, in as few commands as possible.  The
+   * keys left held down by the sequence are tracked as pressed.
+   */
+  void keys(KeySequence sequence);
+
+  /**
+   * Send the key presses and releases of a sequence without waiting for them to be executed.  The
+   * keys left held down by the sequence are tracked as pressed.
+   *
+   * @return the responses to pass to {@link #waitForInput(List)}
+   */
+  List<Future<Response>> keysAsync(KeySequence sequence);
+
+  /**
+   * Create a mouse action without waiting for it to be executed.
+   *
+   * @return the response to pass to {@link #waitForInput(List)}
+   */
+  Future<Response> mouseActionAsync(int x, int y, OperaMouseKeys... keys);
+
+  /**
+   * Wait for key and mouse actions sent without waiting to be executed.
+   */
+  void waitForInput(List<Future<Response>> responses);
+
   /**
    * Whether the given key is currently pressed down.
    *
@@ -20,6 +20,7 @@ import com.opera.core.systems.scope.protos.PrefsProtos.GetPrefArg.Mode;
 import com.opera.core.systems.scope.protos.PrefsProtos.Pref;
 
 import java.util.List;
+import java.util.Map;
 
 public interface IPrefs {
 
@@ -54,4 +55,13 @@ public interface IPrefs {
    */
   void setPrefs(String section, String key, String value);
 
+  /**
+   * Sets several preferences in the same section of <var>operaprefs.ini</var>.  The preferences are
+   * sent to Opera back-to-back, without waiting for each one to be acknowledged.
+   *
+   * @param section the section name
+   * @param values  map of keys in the section to the values to set them to
+   */
+  void setPrefs(String section, Map<String, String> values);
+
 }
\ No newline at end of file
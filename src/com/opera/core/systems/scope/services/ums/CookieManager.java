@@ -28,10 +28,13 @@ import com.opera.core.systems.scope.services.ICookieManager;
 
 import org.openqa.selenium.Cookie;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * Cookie manager to manage cookies via scope
@@ -101,6 +104,22 @@ public class CookieManager extends AbstractService implements ICookieManager {
   }
 
   public void removeCookie(String domain, String path, String name) {
+    executeCommand(CookieManagerCommand.REMOVE_COOKIE, buildRemoveCookieArg(domain, path, name));
+  }
+
+  public void removeCookies(Collection<Cookie> cookies) {
+    List<Future<Response>> responses = new ArrayList<Future<Response>>(cookies.size());
+
+    for (Cookie cookie : cookies) {
+      RemoveCookieArg.Builder arg =
+          buildRemoveCookieArg(cookie.getDomain(), cookie.getPath(), cookie.getName());
+      responses.add(executeCommandAsync(CookieManagerCommand.REMOVE_COOKIE, arg));
+    }
+
+    waitForResponses(responses);
+  }
+
+  private RemoveCookieArg.Builder buildRemoveCookieArg(String domain, String path, String name) {
     if (domain == null) {
       throw new NullPointerException("Domain can not be null");
     }
@@ -116,7 +135,7 @@ public class CookieManager extends AbstractService implements ICookieManager {
       arg.setName(name);
     }
 
-    executeCommand(CookieManagerCommand.REMOVE_COOKIE, arg);
+    return arg;
   }
 
   public void removeAllCookies() {
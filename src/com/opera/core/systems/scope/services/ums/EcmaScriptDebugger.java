@@ -128,10 +128,17 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
 
   public void addRuntime(RuntimeInfo runtime) {
     runtimesList.put(runtime.getRuntimeID(), runtime);
+    forgetAtoms(runtime.getRuntimeID());
   }
 
   public void removeRuntime(int runtimeId) {
     runtimesList.remove(runtimeId);
+    forgetAtoms(runtimeId);
+  }
+
+  public Integer getWindowId(int runtimeId) {
+    RuntimeInfo info = runtimesList.get(runtimeId);
+    return (info == null) ? null : info.getWindowID();
   }
 
   private List<RuntimeInfo> getRuntimesList() {
@@ -275,9 +282,24 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
 
     resetCounters();
 
+    // The page may have deleted the atoms the script uses
+    if (using.contains(ATOMS_OBJECT + ".")
+        && isUnhandledException(response)
+        && reinstallAtoms(using, runtimeId)) {
+      response = executeCommand(ESDebuggerCommand.EVAL, builder,
+                                OperaIntervals.SCRIPT_TIMEOUT.getValue());
+    }
+
     return response;
   }
 
+  /**
+   * @return whether the script evaluated in the response threw an exception
+   */
+  protected boolean isUnhandledException(Response response) {
+    return parseEvalData(response).getStatus().equals("unhandled-exception");
+  }
+
   protected Response eval(String using, Variable... variables) {
     return eval(using, getRuntimeId(), variables);
   }
@@ -331,6 +353,18 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
     return ((ObjectValue) object).getObjectID();
   }
 
+  public Object executeScriptForResult(String using, Integer objectId) {
+    Response response = (objectId == null) ? eval(using)
+                                           : eval(using, buildVariable("locator", objectId));
+
+    Object result = parseEvalReply(parseEvalData(response));
+    if (result instanceof ObjectValue) {
+      ObjectValue data = (ObjectValue) result;
+      return new ScriptResult(data.getObjectID(), data.getName());
+    }
+    return result;
+  }
+
   /**
    * Parses a reply and returns the following types String presentation of number, boolean or
    * string
@@ -516,6 +550,7 @@ public class EcmaScriptDebugger extends AbstractEcmascriptService implements
     for (RuntimeInfo runtime : runtimesList.values()) {
       if (runtime.getWindowID() == windowId) {
         runtimesList.remove(runtime.getRuntimeID());
+        forgetAtoms(runtime.getRuntimeID());
       }
     }
   }
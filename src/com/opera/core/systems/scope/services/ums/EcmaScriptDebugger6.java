@@ -117,6 +117,11 @@ public class EcmaScriptDebugger6 extends EcmaScriptDebugger {
     }
   }
 
+  @Override
+  protected boolean isUnhandledException(Response response) {
+    return parseEvalData(response).getStatus().equals("unhandled-exception");
+  }
+
   private EvalResult parseEvalData(Response response) {
     EvalResult.Builder builder = EvalResult.newBuilder();
     buildPayload(response, builder);
@@ -178,6 +183,19 @@ public class EcmaScriptDebugger6 extends EcmaScriptDebugger {
     return ((ObjectValue) object).getObjectID();
   }
 
+  @Override
+  public Object executeScriptForResult(String using, Integer objectId) {
+    Response response = (objectId == null) ? eval(using)
+                                           : eval(using, buildVariable("locator", objectId));
+
+    Object result = parseEvalReply(parseEvalData(response));
+    if (result instanceof ObjectValue) {
+      ObjectValue data = (ObjectValue) result;
+      return new ScriptResult(data.getObjectID(), data.getClassName());
+    }
+    return result;
+  }
+
   protected Object parseEvalReply(EvalResult result) {
 
     String status = result.getStatus();
@@ -16,27 +16,31 @@ limitations under the License.
 
 package com.opera.core.systems.scope.services.ums;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicStampedReference;
 
-import org.apache.commons.jxpath.Pointer;
 import org.openqa.selenium.NoSuchFrameException;
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
 
 import com.opera.core.systems.OperaWebElement;
 import com.opera.core.systems.ScopeServices;
-import com.opera.core.systems.model.RuntimeNode;
 import com.opera.core.systems.model.ScriptResult;
 import com.opera.core.systems.scope.AbstractEcmascriptService;
 import com.opera.core.systems.scope.ESCommand;
@@ -49,6 +53,7 @@ import com.opera.core.systems.scope.protos.EcmascriptProtos.EvalResult;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ExamineObjectsArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ListRuntimesArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ObjectList;
+import com.opera.core.systems.scope.protos.EcmascriptProtos.PrototypeChain;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ReadyStateChange;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.ReleaseObjectsArg;
 import com.opera.core.systems.scope.protos.EcmascriptProtos.Runtime;
@@ -76,10 +81,25 @@ public class EcmascriptService extends AbstractEcmascriptService implements
 
   private AtomicStampedReference<Runtime> runtime = new AtomicStampedReference<Runtime>(
       null, 0);
-  private ConcurrentMap<Integer, Runtime> runtimesList = new ConcurrentHashMap<Integer, Runtime>();
-
-  private Queue<Integer> runtimesQueue = new LinkedList<Integer>();
-  private Queue<Integer> garbageQueue = new LinkedList<Integer>();
+  private final RuntimeRegistry runtimes = new RuntimeRegistry();
+
+  // Objects to release with the next script, queued from any thread
+  private final Queue<Integer> garbageQueue = new ConcurrentLinkedQueue<Integer>();
+
+  // The ids of the frame elements of a document, by the runtime of the document
+  private final ConcurrentMap<Integer, List<String>> frameIds =
+      new ConcurrentHashMap<Integer, List<String>>();
+
+  private static final String FRAME_IDS_SCRIPT =
+      "var ids = [], elements = document.querySelectorAll('frame, iframe');"
+      + "for (var i = 0; i < frames.length; i++) {"
+      + "  var id = '';"
+      + "  for (var j = 0; j < elements.length; j++) {"
+      + "    if (elements[j].contentWindow == frames[i]) { id = elements[j].id; break; }"
+      + "  }"
+      + "  ids.push(encodeURIComponent(id));"
+      + "}"
+      + "return frames.length ? ids.join(',') : '';";
 
   public EcmascriptService(ScopeServices services, String version) {
     super(services, version);
@@ -108,22 +128,29 @@ public class EcmascriptService extends AbstractEcmascriptService implements
     runtime.setObjectID(info.getObjectID());
     runtime.setUri(info.getUri());
 
-    runtimesList.put(info.getRuntimeID(), runtime.build());
+    putRuntime(runtime.build());
   }
 
   public void removeRuntime(int runtimeId) {
-    runtimesList.remove(runtimeId);
+    runtimes.remove(runtimeId);
+    forgetDocument(runtimeId);
   }
 
-  private List<Runtime> getRuntimesList() {
-    int windowId = services.getWindowManager().getActiveWindowId();
-    Iterator<?> iterator = xpathIterator(runtimesList.values(), "/.[windowID='"
-        + windowId + "']");
-    List<Runtime> runtimes = new ArrayList<Runtime>();
-    while (iterator.hasNext()) {
-      runtimes.add((Runtime) ((Pointer) iterator.next()).getNode());
+  public Integer getWindowId(int runtimeId) {
+    processNewRuntimes();
+    Runtime runtime = runtimes.get(runtimeId);
+    return (runtime == null) ? null : runtime.getWindowID();
+  }
+
+  private void putRuntime(Runtime runtime) {
+    Integer replaced = runtimes.put(runtime);
+    if (replaced != null) {
+      forgetDocument(replaced);
     }
-    return runtimes;
+  }
+
+  private List<Runtime> getRuntimesList() {
+    return runtimes.getRuntimes(services.getWindowManager().getActiveWindowId());
   }
 
   public void init() {
@@ -145,21 +172,21 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   /**
    * Gets a list of runtimes and keeps the list, create runtimes for all pages
    * so even if the pages dont have script we can still inject to a 'fake'
-   * runtime
+   * runtime.  Only needed when a frame is not in the runtime registry, as
+   * runtimes are otherwise tracked from events.
    */
   protected void createAllRuntimes() {
-    ListRuntimesArg.Builder selection = ListRuntimesArg.newBuilder();
-    selection.setCreate(true);
-    Response response = executeCommand(ESCommand.LIST_RUNTIMES, selection);
-
-    runtimesList.clear();
-    RuntimeList.Builder builder = RuntimeList.newBuilder();
-    buildPayload(response, builder);
-    List<Runtime> allRuntimes = builder.build().getRuntimeListList();
+    // Anything pending is in the full list
+    runtimes.drainPending();
+    runtimes.putAll(listRuntimes(null));
+  }
 
-    for (Runtime info : allRuntimes) {
-      runtimesList.put(info.getRuntimeID(), info);
-    }
+  @Override
+  protected void recover() {
+    // The runtime may have gone away without us being told, so don't trust
+    // the registry
+    createAllRuntimes();
+    super.recover();
   }
 
   public Object scriptExecutor(String script, Object... params) {
@@ -236,6 +263,14 @@ public class EcmascriptService extends AbstractEcmascriptService implements
 
     resetCounters();
 
+    // The page may have deleted the atoms the script uses
+    if (using.contains(ATOMS_OBJECT + ".")
+        && parseEvalData(response).getStatus() == Status.EXCEPTION
+        && reinstallAtoms(using, runtimeId)) {
+      response = executeCommand(ESCommand.EVAL, builder,
+          OperaIntervals.SCRIPT_TIMEOUT.getValue());
+    }
+
     return response;
   }
 
@@ -248,7 +283,7 @@ public class EcmascriptService extends AbstractEcmascriptService implements
     return executeScript(using, responseExpected, getRuntimeId());
   }
 
-  private Object executeScript(String using, boolean responseExpected, int runtimeId) {
+  public Object executeScript(String using, boolean responseExpected, int runtimeId) {
     Response reply = eval(using, runtimeId);
     return responseExpected ? parseEvalReply(parseEvalData(reply)) : null;
   }
@@ -284,6 +319,18 @@ public class EcmascriptService extends AbstractEcmascriptService implements
     return ((EcmascriptProtos.Object) object).getObjectID();
   }
 
+  public Object executeScriptForResult(String using, Integer objectId) {
+    Response response = (objectId == null) ? eval(using)
+        : eval(using, buildVariable("locator", objectId));
+
+    Object result = parseEvalReply(parseEvalData(response));
+    if (result instanceof EcmascriptProtos.Object) {
+      EcmascriptProtos.Object data = (EcmascriptProtos.Object) result;
+      return new ScriptResult(data.getObjectID(), data.getClassName());
+    }
+    return result;
+  }
+
   private Object parseEvalReply(EvalResult result) {
 
     Status status = result.getStatus();
@@ -337,132 +384,160 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   protected Runtime findRuntime(int windowId) {
-    createAllRuntimes();
-    Runtime runtime = (Runtime) xpathPointer(runtimesList.values(),
-        "/.[htmlFramePath='" + currentFramePath + "' and windowID='" + windowId
-        + "']").getValue();
-    return runtime;
-  }
+    processNewRuntimes();
 
-  /**
-   * Updates the runtimes list to most recent version
-   * TODO this has to be kept up to date with events and as failover we should
-   * update
-   * It builds a tree to find the frame we are looking for
-   * TODO tree also must be kept up to date
-   */
-  private void buildRuntimeTree() {
-    updateRuntime();
-    Runtime rootInfo = findRuntime();
-    root = new RuntimeNode();
-    root.setFrameName("_top");
-    root.setRuntimeID(rootInfo.getRuntimeID());
-
-    List<Runtime> runtimesInfos = new ArrayList<Runtime>(
-        runtimesList.values());
-    runtimesInfos.remove(rootInfo);
-
-    for (Runtime runtimeInfo : runtimesInfos) {
-      addNode(runtimeInfo, root);
+    Runtime runtime = runtimes.get(windowId, currentFramePath);
+    if (runtime == null) {
+      // A frame without scripts has no runtime until we ask for one
+      createAllRuntimes();
+      runtime = runtimes.get(windowId, currentFramePath);
     }
+    return runtime;
   }
 
   public void changeRuntime(int index) {
-    buildRuntimeTree();
-
-    RuntimeNode node = root.getNodes().get(index + 1);
+    int windowId = windowManager.getActiveWindowId();
+    processNewRuntimes();
+
+    Runtime info = runtimes.getChild(windowId, currentFramePath, index + 1);
+    if (info == null) {
+      // The frame may not have a runtime yet
+      createAllRuntimes();
+      info = runtimes.getChild(windowId, currentFramePath, index + 1);
+    }
 
-    if (node == null) {
+    if (info == null) {
       throw new NoSuchFrameException("Invalid frame index " + index);
     }
 
-    Runtime info = runtimesList.get(node.getRuntimeID());
     currentFramePath = info.getHtmlFramePath();
     setRuntime(info);
   }
 
   public void changeRuntime(String frameName) {
-    buildRuntimeTree();
-
-    String[] values = frameName.split("\\.");
-    RuntimeNode curr = root;
-
-    for (int i = 0; i < values.length; i++) {
-      curr = findNodeByName(values[i], curr);
-      if (curr == null) break;
+    int windowId = windowManager.getActiveWindowId();
+    processNewRuntimes();
+
+    Runtime info = findFrame(windowId, frameName, false);
+    if (info == null) {
+      // The frame may not have a runtime yet, or its id may have changed
+      createAllRuntimes();
+      info = findFrame(windowId, frameName, true);
     }
 
-    if (curr == null) {
+    if (info == null) {
       throw new NoSuchFrameException("Invalid frame name " + frameName);
     }
 
-    Runtime info = runtimesList.get(curr.getRuntimeID());
-
-    // We should only find frames underneath the current one.
-    if (!info.getHtmlFramePath().startsWith(currentFramePath)) {
-      throw new NoSuchFrameException("No such frame "+frameName+" in " + currentFramePath);
-    }
-
     currentFramePath = info.getHtmlFramePath();
     setRuntime(info);
   }
 
-  private RuntimeNode findNodeByName(String name, RuntimeNode rootNode) {
-    for (Entry<Integer, RuntimeNode> entry : rootNode.getNodes().entrySet()) {
-      // check if the name is a number
-      if (isNumber(name) && entry.getKey().equals(Integer.valueOf(name) + 1)) return entry.getValue();
-      // check if it is really the name
-      else if (entry.getValue().getFrameName().equals(name)) return entry.getValue();
-      // last resort is id
-      else {
-        try {
-          if (executeScript("frameElement ? frameElement.id : ''", true,
-              entry.getValue().getRuntimeID()).equals(name)) {
-            return entry.getValue();
-          }
-        } catch (WebDriverException e) {
-          // ignore exception
-        }
+  /**
+   * Finds a frame by a dot separated list of names, ids or indexes, looking
+   * below the current frame first and then below the top frame
+   */
+  private Runtime findFrame(int windowId, String frameName, boolean refresh) {
+    Runtime frame = findFrame(windowId, currentFramePath, frameName, refresh);
+
+    if (frame == null && !currentFramePath.equals("_top")) {
+      frame = findFrame(windowId, "_top", frameName, refresh);
+
+      // We should only find frames underneath the current one.
+      if (frame != null && !frame.getHtmlFramePath().startsWith(currentFramePath)) {
+        throw new NoSuchFrameException("No such frame "+frameName+" in " + currentFramePath);
       }
     }
+
+    return frame;
+  }
+
+  private Runtime findFrame(int windowId, String parentPath, String frameName,
+      boolean refresh) {
+    Runtime frame = null;
+    String path = parentPath;
+
+    for (String name : frameName.split("\\.")) {
+      frame = findChildFrame(windowId, path, name, refresh);
+      if (frame == null) break;
+      path = frame.getHtmlFramePath();
+    }
+    return frame;
+  }
+
+  private Runtime findChildFrame(int windowId, String parentPath, String name,
+      boolean refresh) {
+    // check if the name is a number
+    if (isNumber(name)) {
+      Runtime child = runtimes.getChild(windowId, parentPath, Integer.valueOf(name) + 1);
+      if (child != null) return child;
+    }
+
+    // check if it is really the name
+    SortedMap<Integer, Runtime> children = runtimes.getChildren(windowId, parentPath);
+    for (Runtime child : children.values()) {
+      if (RuntimeRegistry.getFrameName(child.getHtmlFramePath()).equals(name)) return child;
+    }
+
+    // last resort is id
+    List<String> ids = getFrameIds(windowId, parentPath, refresh);
+    for (Entry<Integer, Runtime> entry : children.entrySet()) {
+      int index = entry.getKey() - 1;
+      if (index < ids.size() && ids.get(index).equals(name)) return entry.getValue();
+    }
+
     return null;
   }
 
-  private void addNode(Runtime info, RuntimeNode root) {
-    String[] values = info.getHtmlFramePath().split("/");
-    RuntimeNode curr = root;
-    // first frame is always _top, so we skip it
-    for (int i = 1; i < values.length; ++i) {
-      int index = framePathToIndex(values[i]);
-      if (curr.getNodes().get(index) == null) {
-        // add to this node
-        RuntimeNode node = new RuntimeNode();
-        int end = values[i].indexOf('[');
-        node.setFrameName(values[i].substring(0, end));
-        curr.getNodes().put(index, node);
-        curr = node;
-      } else {
-        curr = curr.getNodes().get(index);
+  /**
+   * Gets the ids of the frame elements in a frame, in the order of their
+   * frame paths.  They are looked up once per document, for all frames at
+   * once.
+   *
+   * @param refresh whether to look them up again, as frames may have been
+   *          added or changed since
+   */
+  private List<String> getFrameIds(int windowId, String parentPath, boolean refresh) {
+    Runtime parent = runtimes.get(windowId, parentPath);
+    if (parent == null) {
+      return new ArrayList<String>();
+    }
+
+    List<String> ids = frameIds.get(parent.getRuntimeID());
+    if (ids == null || refresh) {
+      ids = new ArrayList<String>();
+      try {
+        String reply = (String) executeScript(FRAME_IDS_SCRIPT, true, parent.getRuntimeID());
+        if (reply != null && reply.length() > 0) {
+          for (String id : reply.split(",", -1)) {
+            ids.add(URLDecoder.decode(id, "UTF-8"));
+          }
+        }
+      } catch (WebDriverException e) {
+        // ignore exception, the frames can still be found by name
+      } catch (UnsupportedEncodingException e) {
+        throw new WebDriverException(e);
       }
-      // else we already know about this node, skip it
+      frameIds.put(parent.getRuntimeID(), ids);
     }
-    // last node gets the runtime id
-    curr.setRuntimeID(info.getRuntimeID());
+
+    return ids;
   }
 
-  private int framePathToIndex(String framePath) {
-    int begin = framePath.indexOf('[');
-    int end = framePath.indexOf(']');
-    return Integer.valueOf(framePath.substring(begin + 1, end));
+  /**
+   * Forgets what is known about the document of a runtime, as the runtime is
+   * gone or has a new document
+   */
+  private void forgetDocument(int runtimeId) {
+    forgetAtoms(runtimeId);
+    frameIds.remove(runtimeId);
   }
 
   public void cleanUpRuntimes(int windowId) {
     // if we already have a runtime listed as _top with that window id,
     // clean all runtimes with that window id
-    for (Runtime runtime : runtimesList.values()) {
-      if (runtime.getWindowID() == windowId) {
-        runtimesList.remove(runtime.getRuntimeID());
-      }
+    for (Runtime runtime : runtimes.removeWindow(windowId)) {
+      forgetDocument(runtime.getRuntimeID());
     }
   }
 
@@ -479,6 +554,7 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   public List<String> listFramePaths() {
+    processNewRuntimes();
     List<Runtime> runtimes = getRuntimesList();
     List<String> frameNames = new ArrayList<String>();
     for (Runtime runtime : runtimes) {
@@ -488,21 +564,28 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   public void releaseObjects() {
+    garbageQueue.clear();
     ReleaseObjectsArg.Builder builder = ReleaseObjectsArg.newBuilder();
     executeCommand(ESCommand.RELEASE_OBJECTS, builder);
   }
 
   public void resetRuntimesList() {
-    runtimesList.clear();
+    runtimes.clear();
   }
 
   public void readyStateChanged(ReadyStateChange change) {
+    // A new document, whose runtime has none of the atoms installed
+    if (change.getState() == ReadyStateChange.State.DOM_ENVIRONMENT_CREATED) {
+      forgetDocument(change.getRuntimeID());
+    }
+
     // we should probably wait for AFTER_LOAD but it is reported to
     // be broken, so we will just wait until DOM_CONTENT_LOADED
     // so we can interact with the page as soon as possible
-    if (!runtimesList.containsKey(change.getRuntimeID())) {
-      // a new runtime that we dont know about has been loaded
-      runtimesQueue.add(change.getRuntimeID());
+    if (!runtimes.contains(change.getRuntimeID())) {
+      // a new runtime that we dont know about has been loaded, its frame
+      // is looked up before the next script or runtime lookup
+      runtimes.addPending(change.getRuntimeID());
     }
   }
 
@@ -529,29 +612,92 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   public Object examineScriptResult(Integer id) {
-    ObjectList list = getObjectList(id);
-    EcmascriptProtos.Object obj = list.getPrototypeList(0).getObjectList(0);
-    String className = obj.getClassName();
+    Map<Integer, EcmascriptProtos.Object> objects = examineObjectGraph(id);
+    return buildScriptResult(id, objects, new HashMap<Integer, Object>());
+  }
+
+  /**
+   * Examines an object and all objects reachable from it, breadth first, with
+   * one request for each level of the graph instead of one per object.
+   * Elements are not examined, as they are returned as element references.
+   *
+   * @param rootId the id of the object to start from
+   * @return the objects examined, by object id
+   */
+  private Map<Integer, EcmascriptProtos.Object> examineObjectGraph(int rootId) {
+    Map<Integer, EcmascriptProtos.Object> objects =
+        new HashMap<Integer, EcmascriptProtos.Object>();
+
+    Set<Integer> level = new LinkedHashSet<Integer>();
+    level.add(rootId);
+
+    while (!level.isEmpty()) {
+      Set<Integer> nextLevel = new LinkedHashSet<Integer>();
+
+      for (PrototypeChain chain : getObjectList(level).getPrototypeListList()) {
+        if (chain.getObjectListCount() == 0) continue;
+
+        EcmascriptProtos.Object obj = chain.getObjectList(0);
+        objects.put(obj.getObjectID(), obj);
+
+        for (Property property : obj.getPropertyListList()) {
+          if (property.getValue().getType() != Type.OBJECT) continue;
+
+          EcmascriptProtos.Object child = property.getValue().getObject();
+          int childId = child.getObjectID();
+          if (!child.getClassName().endsWith("Element")
+              && !objects.containsKey(childId) && !level.contains(childId)) {
+            nextLevel.add(childId);
+          }
+        }
+      }
+
+      level = nextLevel;
+    }
 
+    return objects;
+  }
+
+  /**
+   * Converts an examined object to a {@link List}, {@link Map} or element
+   * reference.  Objects referenced more than once are converted once, which
+   * also keeps cyclic references from recursing forever.
+   */
+  private Object buildScriptResult(int id,
+      Map<Integer, EcmascriptProtos.Object> objects, Map<Integer, Object> built) {
+    if (built.containsKey(id)) {
+      return built.get(id);
+    }
+
+    EcmascriptProtos.Object obj = objects.get(id);
+    if (obj == null) {
+      return null;
+    }
+
+    String className = obj.getClassName();
     List<Property> properties = obj.getPropertyListList();
 
     if (className.endsWith("Element")) {
-      return new OperaWebElement(driver, id);
+      Object element = new OperaWebElement(driver, id);
+      built.put(id, element);
+      return element;
     } else if (className.equals("Array")) {
       List<Object> result = new ArrayList<Object>();
+      built.put(id, result);
 
       for (Property property : properties) {
         Type type = property.getValue().getType();
         if (type == Type.NUMBER && property.getName().equals("length")) {
           // ignore ?!?
         } else {
-          result.add(parseValue(type, property.getValue()));
+          result.add(parseValue(type, property.getValue(), objects, built));
         }
       }
       return result;
     } else {
       // we have a map
       Map<String, Object> result = new HashMap<String, Object>();
+      built.put(id, result);
 
       for (Property property : properties) {
         Type type = property.getValue().getType();
@@ -559,14 +705,15 @@ public class EcmascriptService extends AbstractEcmascriptService implements
           // ignore ?!?
         } else {
           result.put(property.getName(), parseValue(type,
-              property.getValue()));
+              property.getValue(), objects, built));
         }
       }
       return result;
     }
   }
 
-  private Object parseValue(Type type, Value value) {
+  private Object parseValue(Type type, Value value,
+      Map<Integer, EcmascriptProtos.Object> objects, Map<Integer, Object> built) {
     switch (type) {
     case TRUE:
       return new Boolean(true);
@@ -581,7 +728,11 @@ public class EcmascriptService extends AbstractEcmascriptService implements
     case STRING:
       return value.getStr();
     case OBJECT:
-      return examineScriptResult(value.getObject().getObjectID());
+      EcmascriptProtos.Object obj = value.getObject();
+      if (obj.getClassName().endsWith("Element")) {
+        return new OperaWebElement(driver, obj.getObjectID());
+      }
+      return buildScriptResult(obj.getObjectID(), objects, built);
 
     case UNDEFINED:
     case NULL:
@@ -592,56 +743,87 @@ public class EcmascriptService extends AbstractEcmascriptService implements
   }
 
   private void processQueues() {
+    // Objects of collected elements are no longer referred to by anything, so they can be released
+    // in the same batch
+    releaseCollectedElements();
     if (!garbageQueue.isEmpty()) processGcObjects();
 
-    if (!runtimesQueue.isEmpty()) processNewRuntimes();
+    processNewRuntimes();
 
-    if (runtimesList.isEmpty()) updateRuntime();
+    if (runtimes.isEmpty()) updateRuntime();
   }
 
+  /**
+   * Looks up the frames of the runtimes announced by events since the last
+   * call, all in one request
+   */
   private void processNewRuntimes() {
-    while (!runtimesQueue.isEmpty()) {
-      Runtime runtime = getRuntime(runtimesQueue.poll());
-      if (runtime != null) {
-        if (runtime.getHtmlFramePath().equals("_top")
-            && windowManager.getActiveWindowId() == runtime.getWindowID()) {
-          setRuntime(runtime);
-        }
-        runtimesList.putIfAbsent(runtime.getRuntimeID(), runtime);
+    if (!runtimes.hasPending()) {
+      return;
+    }
+
+    Set<Integer> ids = new LinkedHashSet<Integer>(runtimes.drainPending());
+    for (Iterator<Integer> iterator = ids.iterator(); iterator.hasNext();) {
+      if (runtimes.contains(iterator.next())) {
+        iterator.remove();
       }
     }
+    if (ids.isEmpty()) {
+      return;
+    }
+
+    for (Runtime runtime : listRuntimes(ids)) {
+      if (runtime.getHtmlFramePath().equals("_top")
+          && windowManager.getActiveWindowId() == runtime.getWindowID()) {
+        setRuntime(runtime);
+      }
+      putRuntime(runtime);
+    }
   }
 
   private void processGcObjects() {
     ReleaseObjectsArg.Builder builder = ReleaseObjectsArg.newBuilder();
-    builder.addAllObjectIDList(garbageQueue);
-    executeCommand(ESCommand.RELEASE_OBJECTS, builder);
-    garbageQueue.clear();
+    Integer objectId;
+    while ((objectId = garbageQueue.poll()) != null) {
+      builder.addObjectIDList(objectId);
+    }
+    if (builder.getObjectIDListCount() == 0) {
+      return;
+    }
+
+    // Nothing depends on the objects being released, so don't wait for the response
+    executeCommandAsync(ESCommand.RELEASE_OBJECTS, builder);
   }
 
   /**
-   * Queries for the given runtime ID
+   * Queries for the given runtime IDs
    *
-   * @param runtimeID The runtime id to query for
-   * @return {@link Runtime} object if found, <code>null</code> otherwise
+   * @param runtimeIDs The runtime ids to query for, or <code>null</code> for
+   *          all runtimes
+   * @return the {@link Runtime}s found
    */
-  private Runtime getRuntime(int runtimeID) {
+  private List<Runtime> listRuntimes(Collection<Integer> runtimeIDs) {
     ListRuntimesArg.Builder builder = ListRuntimesArg.newBuilder();
-    builder.addRuntimeIDList(runtimeID);
+    if (runtimeIDs != null) {
+      builder.addAllRuntimeIDList(runtimeIDs);
+    }
     builder.setCreate(true);
 
     Response response = executeCommand(ESCommand.LIST_RUNTIMES, builder);
     RuntimeList.Builder runtimeListBuilder = RuntimeList.newBuilder();
     buildPayload(response, runtimeListBuilder);
-    List<Runtime> runtimes = runtimeListBuilder.build().getRuntimeListList();
-    return (runtimes.isEmpty()) ? null : runtimes.get(0);
+    return runtimeListBuilder.build().getRuntimeListList();
   }
 
   private ObjectList getObjectList(Integer id) {
+    return getObjectList(Arrays.asList(id));
+  }
+
+  private ObjectList getObjectList(Collection<Integer> ids) {
     ExamineObjectsArg.Builder builder = ExamineObjectsArg.newBuilder();
     builder.setExaminePrototypes(false);
     builder.setRuntimeID(getRuntimeId());
-    builder.addObjectIDList(id);
+    builder.addAllObjectIDList(ids);
     Response response = executeCommand(ESCommand.EXAMINE_OBJECTS, builder);
 
     ObjectList.Builder objListBuilder = ObjectList.newBuilder();
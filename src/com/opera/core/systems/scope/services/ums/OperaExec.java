@@ -19,6 +19,7 @@ package com.opera.core.systems.scope.services.ums;
 import com.opera.core.systems.ScopeServices;
 import com.opera.core.systems.model.Canvas;
 import com.opera.core.systems.model.ColorResult;
+import com.opera.core.systems.model.KeySequence;
 import com.opera.core.systems.model.OperaColor;
 import com.opera.core.systems.model.ScreenShotReply;
 import com.opera.core.systems.scope.AbstractService;
@@ -26,7 +27,6 @@ import com.opera.core.systems.scope.ExecCommand;
 import com.opera.core.systems.scope.exceptions.WindowNotFoundException;
 import com.opera.core.systems.scope.internal.OperaColors;
 import com.opera.core.systems.scope.internal.OperaIntervals;
-import com.opera.core.systems.scope.internal.OperaKeys;
 import com.opera.core.systems.scope.internal.OperaMouseKeys;
 import com.opera.core.systems.scope.protos.ExecProtos.ActionInfoList;
 import com.opera.core.systems.scope.protos.ExecProtos.ActionInfoList.ActionInfo;
@@ -43,6 +43,8 @@ import com.opera.core.systems.scope.services.IOperaExec;
 import com.opera.core.systems.util.CaseInsensitiveStringSet;
 import com.opera.core.systems.util.VersionUtil;
 
+import com.google.protobuf.UnknownFieldSet;
+
 import org.openqa.selenium.WebDriverException;
 
 import java.util.ArrayList;
@@ -50,6 +52,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -61,6 +64,25 @@ import java.util.logging.Logger;
 public class OperaExec extends AbstractService implements IOperaExec {
 
   private static Logger logger = Logger.getLogger(OperaExec.class.getName());
+
+  // The highest number of key actions sent in one Exec command
+  private static final int MAX_KEY_ACTIONS = 256;
+
+  // The number of the count field of MouseAction, added in exec 2.2 after the protos were generated
+  private static final int MOUSE_ACTION_COUNT = 5;
+
+  // How far apart in pixels clicks may be to be counted as one multiple click
+  private static final int CLICK_DISTANCE = 4;
+
+  // Whether Opera repeats a mouse action itself when given a count, from exec 2.2
+  private final boolean nativeMouseCount;
+
+  // When and where the last click was made, and whether it was a multiple click
+  private long lastClickTime = 0;
+  private int lastClickX = -1;
+  private int lastClickY = -1;
+  private boolean lastMultipleClick = false;
+
   private List<String> keys;
   private Set<String> actions;
   private ScopeServices services;
@@ -93,6 +115,8 @@ public class OperaExec extends AbstractService implements IOperaExec {
       excludedActions.add("Close page");
     }
 
+    nativeMouseCount = VersionUtil.compare(version, "2.2") >= 0;
+
     services.setExec(this);
     this.services = services;
     keys = new CopyOnWriteArrayList<String>();
@@ -125,33 +149,7 @@ public class OperaExec extends AbstractService implements IOperaExec {
       throw new IllegalArgumentException("Can't type empty string");
     }
 
-    if (keyIsPressed(OperaKeys.SHIFT.getValue())) {
-      using = using.toUpperCase();
-    }
-
-    for (int i = 0; i < using.length(); ++i) {
-      char ch = using.charAt(i);
-      if (Character.isUpperCase(ch)) {
-        // If shift is already pressed down, we don't need to press it for
-        // capitals. We don't release it if we're typing lower-case, because
-        // if the user has pressed shift and then types lower-case presumably
-        // they want to type upper-case characters.
-        boolean releaseShift = false;
-
-        if (!keyIsPressed(OperaKeys.SHIFT.getValue())) {
-          key(OperaKeys.SHIFT.getValue(), false);
-          releaseShift = true;
-        }
-
-        key(String.valueOf(ch));
-
-        if (releaseShift) {
-          key(OperaKeys.SHIFT.getValue(), true);
-        }
-      } else {
-        key(String.valueOf(ch));
-      }
-    }
+    keys(keySequence().type(using));
 
     /*
     action("_type", using);
@@ -163,6 +161,73 @@ public class OperaExec extends AbstractService implements IOperaExec {
   }
 
   public void mouseAction(int x, int y, int count, OperaMouseKeys... keys) {
+    MouseAction.Builder actionBuilder = buildMouseAction(x, y, keys);
+    boolean press = isPress(actionBuilder);
+
+    if (press) {
+      settleClicks(x, y, count);
+    }
+
+    if (nativeMouseCount) {
+      // Opera repeats the action itself, so it is sent once
+      if (count != 1) {
+        actionBuilder.setUnknownFields(UnknownFieldSet.newBuilder()
+            .addField(MOUSE_ACTION_COUNT, UnknownFieldSet.Field.newBuilder()
+                .addVarint(count).build())
+            .build());
+      }
+      executeCommand(ExecCommand.SEND_MOUSE_ACTION, actionBuilder);
+    } else {
+      for (int i = 0; i < count; i++) {
+        executeCommand(ExecCommand.SEND_MOUSE_ACTION, actionBuilder.clone());
+      }
+    }
+
+    if (press) {
+      recordClick(x, y, count);
+    }
+  }
+
+  /**
+   * Waits for the clicks made before to be over, if a click at the given position would otherwise
+   * be counted together with them.  Opera counts clicks made close together in time and space as
+   * one multiple click, so a double-click right after another would be a quadruple-click.  Single
+   * clicks made in a row are still counted together, as that is how a double-click is made one
+   * click at a time.
+   *
+   * @param x     the horizontal position of the click
+   * @param y     the vertical position of the click
+   * @param count the number of clicks about to be made
+   */
+  private void settleClicks(int x, int y, int count) {
+    if (!lastMultipleClick && count == 1) {
+      return;
+    }
+    if (Math.abs(x - lastClickX) > CLICK_DISTANCE || Math.abs(y - lastClickY) > CLICK_DISTANCE) {
+      return;
+    }
+
+    long remaining = lastClickTime + OperaIntervals.MULTIPLE_CLICK_SLEEP.getValue()
+                     - System.currentTimeMillis();
+    if (remaining > 0) {
+      sleep(remaining);
+    }
+  }
+
+  private void recordClick(int x, int y, int count) {
+    lastClickTime = System.currentTimeMillis();
+    lastClickX = x;
+    lastClickY = y;
+    lastMultipleClick = (count > 1);
+  }
+
+  private static boolean isPress(MouseAction.Builder action) {
+    int presses = OperaMouseKeys.LEFT_DOWN.getValue() | OperaMouseKeys.RIGHT_DOWN.getValue()
+                  | OperaMouseKeys.MIDDLE_DOWN.getValue();
+    return (action.getButtonAction() & presses) != 0;
+  }
+
+  private MouseAction.Builder buildMouseAction(int x, int y, OperaMouseKeys... keys) {
     if (x < 0 || y < 0) {
       throw new IllegalArgumentException();
     }
@@ -179,37 +244,102 @@ public class OperaExec extends AbstractService implements IOperaExec {
     actionBuilder.setX(x);
     actionBuilder.setY(y);
     actionBuilder.setButtonAction(keyValue);
+    return actionBuilder;
+  }
 
-    // TODO: Investigate whether we should let Opera do iteration
-    /*
-    if(VersionUtil.compare(getVersion(), "2.2") >= 0) {
-      actionBuilder.setCount(count);
-      executeCommand(ExecCommand.SEND_MOUSE_ACTION, actionBuilder);
-    } else {
-    */
-    for (int i = 0; i < count; i++) {
-      executeCommand(ExecCommand.SEND_MOUSE_ACTION, actionBuilder.clone());
+  public Set<String> getActionList() {
+    return actions;
+  }
+
+  public void action(String using, int windowID, String... params) {
+    if (executeCommand(ExecCommand.EXEC, buildAction(using, windowID, params)) == null) {
+      throw new WebDriverException("Unexpected error while calling action : " + using);
     }
-    /*}*/
-
-    // If double-clicking, wait some time after executing the mouse action
-    // so that Opera doesn't consider two consecutive doubleClick()'s a
-    // quadruple-click.
-    //
-    // TODO: Also a problem if single-clicking multiple times in a row?
-    if (count > 1) {
-      try {
-        Thread.sleep(OperaIntervals.MULTIPLE_CLICK_SLEEP.getValue());
-      } catch (InterruptedException e) {
+  }
+
+  public KeySequence keySequence() {
+    return new KeySequence(keys);
+  }
+
+  public void keys(KeySequence sequence) {
+    waitForInput(keysAsync(sequence));
+  }
+
+  /**
+   * Sends the actions of a key sequence in the active window, without waiting for them to be
+   * executed.  The actions are sent together in as few commands as possible, each holding up to
+   * {@link #MAX_KEY_ACTIONS} of them, rather than one command per key press.  The keys are tracked
+   * as the sequence leaves them as soon as it is sent.
+   *
+   * @param sequence the key presses and releases to send
+   * @return the responses to wait for
+   */
+  public List<Future<Response>> keysAsync(KeySequence sequence) {
+    List<Future<Response>> responses = new ArrayList<Future<Response>>();
+    if (sequence.isEmpty()) {
+      return responses;
+    }
+
+    int windowID = services.getWindowManager().getActiveWindowId();
+    List<String> actions = sequence.getActions();
+
+    for (int from = 0; from < actions.size(); from += MAX_KEY_ACTIONS * 2) {
+      ActionList.Builder builder = ActionList.newBuilder();
+      int to = Math.min(from + MAX_KEY_ACTIONS * 2, actions.size());
+
+      for (int i = from; i < to; i += 2) {
+        Action.Builder actionBuilder = Action.newBuilder();
+        actionBuilder.setName(actions.get(i));
+        actionBuilder.setValue(actions.get(i + 1));
+        actionBuilder.setWindowID(windowID);
+        builder.addActionList(actionBuilder);
+      }
+
+      responses.add(executeCommandAsync(ExecCommand.EXEC, builder));
+    }
+
+    // Whatever happens, the keys are now held as the sequence left them
+    keys.retainAll(sequence.getPressedKeys());
+    for (String key : sequence.getPressedKeys()) {
+      if (!keys.contains(key)) {
+        keys.add(key);
       }
     }
+
+    return responses;
   }
 
-  public Set<String> getActionList() {
-    return actions;
+  public Future<Response> mouseActionAsync(int x, int y, OperaMouseKeys... keys) {
+    MouseAction.Builder actionBuilder = buildMouseAction(x, y, keys);
+    boolean press = isPress(actionBuilder);
+
+    if (press) {
+      settleClicks(x, y, 1);
+    }
+
+    Future<Response> response = executeCommandAsync(ExecCommand.SEND_MOUSE_ACTION, actionBuilder);
+
+    if (press) {
+      recordClick(x, y, 1);
+    }
+    return response;
   }
 
-  public void action(String using, int windowID, String... params) {
+  /**
+   * Waits for input sent without waiting.  Opera executes the commands in the order they were
+   * sent, so this returns as soon as the last one is executed.
+   *
+   * @param responses the responses to the commands
+   */
+  public void waitForInput(List<Future<Response>> responses) {
+    for (Response response : waitForResponses(responses)) {
+      if (response == null) {
+        throw new WebDriverException("Unexpected error while sending input");
+      }
+    }
+  }
+
+  private ActionList.Builder buildAction(String using, int windowID, String... params) {
     if (!actions.contains(using)) {
       throw new WebDriverException("The requested action is not supported : " + using);
     }
@@ -232,9 +362,7 @@ public class OperaExec extends AbstractService implements IOperaExec {
 
     // type.setSpace("preserve");
     builder.addActionList(actionBuilder);
-    if (executeCommand(ExecCommand.EXEC, builder) == null) {
-      throw new WebDriverException("Unexpected error while calling action : " + using);
-    }
+    return builder;
   }
 
   public void action(String using, int data, String dataString, String dataStringParam) {
@@ -262,17 +390,15 @@ public class OperaExec extends AbstractService implements IOperaExec {
   }
 
   public void key(String key) {
-    key(key, false);
-    key(key, true);
+    // Send the key press and release in one command
+    keys(keySequence().press(key));
   }
 
   public void key(String key, boolean up) {
     if (up) {
-      action("_keyup", key);
-      keys.remove(key.toLowerCase());
+      keys(keySequence().up(key));
     } else {
-      action("_keydown", key);
-      keys.add(key.toLowerCase());
+      keys(keySequence().down(key));
     }
   }
 
@@ -281,9 +407,7 @@ public class OperaExec extends AbstractService implements IOperaExec {
   }
 
   public void releaseKeys() {
-    for (String key : keys) {
-      this.key(key, true);
-    }
+    keys(keySequence().releaseAll());
   }
 
   public ScreenShotReply containsColor(Canvas canvas, long timeout, OperaColors... colors) {
@@ -31,7 +31,10 @@ import com.opera.core.systems.scope.services.IPrefs;
 
 import org.openqa.selenium.WebDriverException;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 public class Prefs extends AbstractService implements IPrefs {
 
@@ -96,4 +99,23 @@ public class Prefs extends AbstractService implements IPrefs {
     }
   }
 
+  public void setPrefs(String section, Map<String, String> values) {
+    List<Future<Response>> responses = new ArrayList<Future<Response>>(values.size());
+
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      SetPrefArg.Builder setPrefBuilder = SetPrefArg.newBuilder();
+      setPrefBuilder.setSection(section);
+      setPrefBuilder.setKey(entry.getKey());
+      setPrefBuilder.setValue(entry.getValue());
+
+      responses.add(executeCommandAsync(PrefsCommand.SET_PREF, setPrefBuilder));
+    }
+
+    for (Response response : waitForResponses(responses)) {
+      if (response == null) {
+        throw new WebDriverException("Internal error while setting a preference");
+      }
+    }
+  }
+
 }
\ No newline at end of file
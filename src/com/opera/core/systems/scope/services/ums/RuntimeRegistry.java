@@ -0,0 +1,268 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope.services.ums;
+
+import com.opera.core.systems.scope.protos.EcmascriptProtos.Runtime;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The runtimes known to the ecmascript service, indexed by runtime id and by window id and frame
+ * path, so that finding the runtime of a frame needs no round trip to Opera.
+ *
+ * The registry is kept current from events: runtimes announced by OnReadyStateChanged are queued
+ * as pending, since the event does not tell which frame they belong to, and are resolved by the
+ * service in one batch before the next lookup.  Runtimes are dropped when they are stopped or their
+ * window is closed or reloaded.
+ *
+ * The frames below each frame are indexed as well, by their position in the parent frame, which
+ * gives the frame tree of a window without building it for every lookup.
+ *
+ * Runtimes are added and removed from the event threads and looked up from the driver thread.
+ */
+public class RuntimeRegistry {
+
+  private final ConcurrentMap<Integer, Runtime> runtimesById =
+      new ConcurrentHashMap<Integer, Runtime>();
+  private final ConcurrentMap<String, Runtime> runtimesByFrame =
+      new ConcurrentHashMap<String, Runtime>();
+  private final ConcurrentMap<String, ConcurrentMap<Integer, Runtime>> runtimesByParent =
+      new ConcurrentHashMap<String, ConcurrentMap<Integer, Runtime>>();
+  private final Queue<Integer> pending = new ConcurrentLinkedQueue<Integer>();
+
+  private static String key(int windowId, String htmlFramePath) {
+    return windowId + ":" + htmlFramePath;
+  }
+
+  /**
+   * Gets the path of the frame containing a frame, "_top/[1]" for "_top/[1]/foo[2]".
+   *
+   * @param htmlFramePath the path of the frame
+   * @return the path of the parent frame, or <code>null</code> for the top frame
+   */
+  public static String getParentPath(String htmlFramePath) {
+    int slash = htmlFramePath.lastIndexOf('/');
+    return (slash == -1) ? null : htmlFramePath.substring(0, slash);
+  }
+
+  /**
+   * Gets the position of a frame in its parent, 2 for "_top/foo[2]".  Frames are counted from 1.
+   */
+  public static int getFrameIndex(String htmlFramePath) {
+    int begin = htmlFramePath.lastIndexOf('[');
+    int end = htmlFramePath.lastIndexOf(']');
+    return Integer.valueOf(htmlFramePath.substring(begin + 1, end));
+  }
+
+  /**
+   * Gets the name of a frame, "foo" for "_top/foo[2]".  Unnamed frames have an empty name.
+   */
+  public static String getFrameName(String htmlFramePath) {
+    int slash = htmlFramePath.lastIndexOf('/');
+    int begin = htmlFramePath.lastIndexOf('[');
+    return htmlFramePath.substring(slash + 1, begin);
+  }
+
+  /**
+   * Adds a runtime, replacing the runtime previously found in the same frame.
+   *
+   * @param runtime the runtime to add
+   * @return the id of the runtime replaced, or <code>null</code> if there was none
+   */
+  public Integer put(Runtime runtime) {
+    runtimesById.put(runtime.getRuntimeID(), runtime);
+
+    Runtime previous = runtimesByFrame.put(key(runtime.getWindowID(), runtime.getHtmlFramePath()),
+                                           runtime);
+
+    String parentPath = getParentPath(runtime.getHtmlFramePath());
+    if (parentPath != null) {
+      String parentKey = key(runtime.getWindowID(), parentPath);
+      ConcurrentMap<Integer, Runtime> children = runtimesByParent.get(parentKey);
+      if (children == null) {
+        ConcurrentMap<Integer, Runtime> newChildren = new ConcurrentHashMap<Integer, Runtime>();
+        children = runtimesByParent.putIfAbsent(parentKey, newChildren);
+        if (children == null) {
+          children = newChildren;
+        }
+      }
+      children.put(getFrameIndex(runtime.getHtmlFramePath()), runtime);
+    }
+
+    if (previous != null && previous.getRuntimeID() != runtime.getRuntimeID()) {
+      runtimesById.remove(previous.getRuntimeID(), previous);
+      return previous.getRuntimeID();
+    }
+    return null;
+  }
+
+  /**
+   * Replaces all known runtimes with the given ones.
+   *
+   * @param runtimes the complete list of runtimes
+   */
+  public void putAll(Collection<Runtime> runtimes) {
+    clear();
+    for (Runtime runtime : runtimes) {
+      put(runtime);
+    }
+  }
+
+  /**
+   * @param runtimeId the id of the runtime
+   * @return the runtime, or <code>null</code> if it is not known
+   */
+  public Runtime get(int runtimeId) {
+    return runtimesById.get(runtimeId);
+  }
+
+  /**
+   * @param windowId      the window the frame is in
+   * @param htmlFramePath the path of the frame in the window, such as "_top/[1]"
+   * @return the runtime of the frame, or <code>null</code> if it is not known
+   */
+  public Runtime get(int windowId, String htmlFramePath) {
+    return runtimesByFrame.get(key(windowId, htmlFramePath));
+  }
+
+  /**
+   * @param windowId   the window the frames are in
+   * @param parentPath the path of the frame containing the frames
+   * @return the runtimes of the frames directly below the given frame, by their position in it
+   */
+  public SortedMap<Integer, Runtime> getChildren(int windowId, String parentPath) {
+    ConcurrentMap<Integer, Runtime> children = runtimesByParent.get(key(windowId, parentPath));
+    if (children == null) {
+      return new TreeMap<Integer, Runtime>();
+    }
+    return new TreeMap<Integer, Runtime>(children);
+  }
+
+  /**
+   * @param windowId   the window the frame is in
+   * @param parentPath the path of the frame containing the frame
+   * @param index      the position of the frame in its parent, counted from 1
+   * @return the runtime of the frame, or <code>null</code> if it is not known
+   */
+  public Runtime getChild(int windowId, String parentPath, int index) {
+    ConcurrentMap<Integer, Runtime> children = runtimesByParent.get(key(windowId, parentPath));
+    return (children == null) ? null : children.get(index);
+  }
+
+  public boolean contains(int runtimeId) {
+    return runtimesById.containsKey(runtimeId);
+  }
+
+  /**
+   * @param windowId the id of the window
+   * @return the runtimes of all frames in the window
+   */
+  public List<Runtime> getRuntimes(int windowId) {
+    List<Runtime> runtimes = new ArrayList<Runtime>();
+    for (Runtime runtime : runtimesById.values()) {
+      if (runtime.getWindowID() == windowId) {
+        runtimes.add(runtime);
+      }
+    }
+    return runtimes;
+  }
+
+  /**
+   * Removes a runtime.
+   *
+   * @param runtimeId the id of the runtime
+   * @return the runtime removed, or <code>null</code> if it was not known
+   */
+  public Runtime remove(int runtimeId) {
+    Runtime runtime = runtimesById.remove(runtimeId);
+    if (runtime != null) {
+      runtimesByFrame.remove(key(runtime.getWindowID(), runtime.getHtmlFramePath()), runtime);
+
+      String parentPath = getParentPath(runtime.getHtmlFramePath());
+      if (parentPath != null) {
+        ConcurrentMap<Integer, Runtime> children =
+            runtimesByParent.get(key(runtime.getWindowID(), parentPath));
+        if (children != null) {
+          children.remove(getFrameIndex(runtime.getHtmlFramePath()), runtime);
+        }
+      }
+    }
+    return runtime;
+  }
+
+  /**
+   * Removes the runtimes of all frames in a window.
+   *
+   * @param windowId the id of the window
+   * @return the runtimes removed
+   */
+  public List<Runtime> removeWindow(int windowId) {
+    List<Runtime> removed = new ArrayList<Runtime>();
+    for (Runtime runtime : getRuntimes(windowId)) {
+      if (remove(runtime.getRuntimeID()) != null) {
+        removed.add(runtime);
+      }
+    }
+    return removed;
+  }
+
+  public boolean isEmpty() {
+    return runtimesById.isEmpty();
+  }
+
+  public void clear() {
+    runtimesById.clear();
+    runtimesByFrame.clear();
+    runtimesByParent.clear();
+  }
+
+  /**
+   * Queues a runtime whose frame is not known yet.
+   *
+   * @param runtimeId the id of the runtime
+   */
+  public void addPending(int runtimeId) {
+    pending.add(runtimeId);
+  }
+
+  public boolean hasPending() {
+    return !pending.isEmpty();
+  }
+
+  /**
+   * Takes all the queued runtime ids, leaving the queue empty.
+   *
+   * @return the ids of the runtimes whose frames are not known yet
+   */
+  public List<Integer> drainPending() {
+    List<Integer> ids = new ArrayList<Integer>();
+    Integer id;
+    while ((id = pending.poll()) != null) {
+      ids.add(id);
+    }
+    return ids;
+  }
+
+}
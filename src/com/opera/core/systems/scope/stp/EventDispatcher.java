@@ -0,0 +1,300 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope.stp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.opera.core.systems.scope.protos.UmsProtos.Event;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the event handlers off the STP thread, so that a slow handler never delays the reading of
+ * responses, and never holds up the other connections served by the same thread.  The STP thread
+ * only frames the events and queues them here.
+ *
+ * Events are queued per service, and the events of one service are always handled one at a time,
+ * in the order they were received.  Events of different services may be handled concurrently.  The
+ * dispatch threads are shared by all connections in the JVM.
+ *
+ * Events of window-manager, ecmascript and ecmascript-debugger share one ordered queue.  Their
+ * handlers update the list of runtimes, which the caller of the next command relies on being up to
+ * date when its response arrives.  Responses are therefore passed through {@link
+ * #runAfterOrderedEvents(Runnable)}, which delivers them only once the ordered events received
+ * before them have been handled.
+ *
+ * Queueing never blocks the STP thread.  Once the given capacity of events is waiting the
+ * dispatcher is paused, and the connection stops reading until the queue has drained to half the
+ * capacity, when the given resume callback is run.  The events already received when the
+ * dispatcher is paused are still queued, so the capacity may be overrun by those of one read.
+ */
+public class EventDispatcher {
+
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private static final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("event-dispatch-%d").setDaemon(true).build());
+
+  private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private final UmsEventParser parser;
+  private final Lane orderedLane = new Lane();
+  private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  private final int capacity;
+  private final Runnable resume;
+  private boolean paused = false;
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+  /**
+   * @param parser the parser handling the events
+   * @param resume run on a dispatch thread when the dispatcher stops being paused
+   */
+  public EventDispatcher(UmsEventParser parser, Runnable resume) {
+    this(parser, DEFAULT_CAPACITY, resume);
+  }
+
+  /**
+   * @param parser   the parser handling the events
+   * @param capacity the number of queued events at which the dispatcher is paused
+   * @param resume   run on a dispatch thread when the dispatcher stops being paused
+   */
+  public EventDispatcher(UmsEventParser parser, int capacity, Runnable resume) {
+    this.parser = parser;
+    this.capacity = capacity;
+    this.resume = resume;
+  }
+
+  /**
+   * Queues an event to be handled on a dispatch thread.
+   *
+   * @param event the event to handle
+   */
+  public void dispatch(Event event) {
+    if (closed.get()) {
+      return;
+    }
+
+    int depth = queueDepth.incrementAndGet();
+    int max = maxQueueDepth.get();
+    while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+      max = maxQueueDepth.get();
+    }
+
+    String service = event.getService();
+    if (isOrdered(service)) {
+      orderedLane.add(new EventTask(event));
+      return;
+    }
+
+    Lane lane = lanes.get(service);
+    if (lane == null) {
+      Lane newLane = new Lane();
+      lane = lanes.putIfAbsent(service, newLane);
+      if (lane == null) {
+        lane = newLane;
+      }
+    }
+
+    lane.add(new EventTask(event));
+  }
+
+  /**
+   * Runs a task once all the window-manager, ecmascript and ecmascript-debugger events dispatched so
+   * far have been handled.  The task runs on the calling thread if there are none waiting.
+   *
+   * @param task the task to run, usually delivering a response
+   */
+  public void runAfterOrderedEvents(Runnable task) {
+    if (closed.get() || orderedLane.isIdle()) {
+      task.run();
+    } else {
+      orderedLane.add(task);
+    }
+  }
+
+  private boolean isOrdered(String service) {
+    return service.equals("window-manager") || service.equals("ecmascript")
+           || service.equals("ecmascript-debugger");
+  }
+
+  /**
+   * Pauses the dispatcher if the capacity has been reached.  The caller must stop reading events
+   * while the dispatcher is paused.
+   *
+   * @return whether the dispatcher is paused
+   */
+  public synchronized boolean pauseIfFull() {
+    if (!paused && queueDepth.get() >= capacity) {
+      logger.fine(queueDepth.get() + " events are waiting for their handlers, pausing");
+      paused = true;
+    }
+    return paused;
+  }
+
+  /**
+   * @return whether the dispatcher is paused, so that no events should be read
+   */
+  public synchronized boolean isPaused() {
+    return paused;
+  }
+
+  /**
+   * @return the number of events queued, but not yet handled
+   */
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /**
+   * @return the highest number of events that have been queued at the same time
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  /**
+   * Stops handling events.  Events that have not been handled yet are discarded, and tasks waiting
+   * for them are run on the calling thread.
+   */
+  public void shutdown() {
+    closed.set(true);
+    orderedLane.drain();
+    for (Lane lane : lanes.values()) {
+      lane.drain();
+    }
+  }
+
+  private void handled() {
+    if (queueDepth.decrementAndGet() > capacity / 2) {
+      return;
+    }
+
+    synchronized (this) {
+      if (!paused || closed.get()) {
+        return;
+      }
+      paused = false;
+    }
+    resume.run();
+  }
+
+  private void handle(Event event) {
+    try {
+      parser.handleEvent(event);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Exception while handling " + event.getService() + " event "
+                                + event.getCommandID(), e);
+    }
+  }
+
+  private class EventTask implements Runnable {
+
+    private final Event event;
+
+    public EventTask(Event event) {
+      this.event = event;
+    }
+
+    public void run() {
+      if (!closed.get()) {
+        handle(event);
+      }
+      handled();
+    }
+
+  }
+
+  /**
+   * A queue of tasks, usually the events of one service.  At most one drain task per lane is
+   * scheduled at a time, which keeps the tasks in order.
+   */
+  private class Lane implements Runnable {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    // The tasks added but not yet run
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public void add(Runnable task) {
+      pending.incrementAndGet();
+      tasks.add(task);
+      schedule();
+    }
+
+    /**
+     * @return whether all tasks added have been run
+     */
+    public boolean isIdle() {
+      return pending.get() == 0;
+    }
+
+    /**
+     * Runs the tasks left on the calling thread.  Events are discarded as the dispatcher is closed.
+     */
+    public void drain() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        runTask(task);
+      }
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        executor.execute(this);
+      }
+    }
+
+    private void runTask(Runnable task) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Exception while dispatching", e);
+      } finally {
+        pending.decrementAndGet();
+      }
+    }
+
+    public void run() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        runTask(task);
+      }
+
+      scheduled.set(false);
+
+      // A task may have been added after the queue was found empty, but before the flag was
+      // cleared
+      if (!tasks.isEmpty()) {
+        schedule();
+      }
+    }
+
+  }
+
+}
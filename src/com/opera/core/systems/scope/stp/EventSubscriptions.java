@@ -0,0 +1,68 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope.stp;
+
+import com.opera.core.systems.model.ICommand;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The set of events somebody is listening to, keyed by service name and event id.  The STP
+ * connection only reads the header of an incoming event, and drops the event without decoding its
+ * payload unless it is subscribed to here.
+ *
+ * Subscriptions are read on the STP thread and may be changed from any thread.
+ */
+public class EventSubscriptions {
+
+  private final ConcurrentMap<String, ConcurrentMap<Integer, Boolean>> subscriptions =
+      new ConcurrentHashMap<String, ConcurrentMap<Integer, Boolean>>();
+
+  public void subscribe(ICommand event) {
+    subscribe(event.getServiceName(), event.getCommandID());
+  }
+
+  public void subscribe(String service, int eventId) {
+    ConcurrentMap<Integer, Boolean> events = subscriptions.get(service);
+    if (events == null) {
+      ConcurrentMap<Integer, Boolean> newEvents = new ConcurrentHashMap<Integer, Boolean>();
+      events = subscriptions.putIfAbsent(service, newEvents);
+      if (events == null) {
+        events = newEvents;
+      }
+    }
+    events.put(eventId, Boolean.TRUE);
+  }
+
+  public void unsubscribe(ICommand event) {
+    unsubscribe(event.getServiceName(), event.getCommandID());
+  }
+
+  public void unsubscribe(String service, int eventId) {
+    ConcurrentMap<Integer, Boolean> events = subscriptions.get(service);
+    if (events != null) {
+      events.remove(eventId);
+    }
+  }
+
+  public boolean isSubscribed(String service, int eventId) {
+    ConcurrentMap<Integer, Boolean> events = subscriptions.get(service);
+    return events != null && events.containsKey(eventId);
+  }
+
+}
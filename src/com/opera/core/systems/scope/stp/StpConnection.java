@@ -16,8 +16,9 @@ limitations under the License.
 
 package com.opera.core.systems.scope.stp;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import com.opera.core.systems.scope.handlers.AbstractEventHandler;
 import com.opera.core.systems.scope.handlers.IConnectionHandler;
@@ -28,6 +29,7 @@ import com.opera.core.systems.scope.protos.UmsProtos.Error;
 import com.opera.core.systems.scope.protos.UmsProtos.Event;
 import com.opera.core.systems.scope.protos.UmsProtos.Response;
 import com.opera.core.systems.scope.protos.UmsProtos.Status;
+import com.opera.core.systems.util.ByteBufferPool;
 import com.opera.core.systems.util.SocketListener;
 import com.opera.core.systems.util.SocketMonitor;
 
@@ -42,6 +44,7 @@ import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,16 +53,24 @@ public class StpConnection implements SocketListener {
   private final Logger logger = Logger.getLogger(this.getClass().getName());
   private SocketChannel socketChannel;
 
+  // Size of the pooled outgoing buffers; most commands fit, larger ones are allocated on demand
+  private static final int OUTGOING_BUFFER_SIZE = 4096;
+  private static final int OUTGOING_BUFFER_POOL_SIZE = 32;
+
   // Outgoing send queue
   private final ArrayBlockingQueue<ByteBuffer> requests;
-  private ByteBuffer recvBuffer;
+  private final ByteBuffer[] writeBatch = new ByteBuffer[64];
+  private final AtomicBoolean writePending = new AtomicBoolean(false);
+  private final StpFrameDecoder recvBuffer;
+  private final ByteBufferPool bufferPool;
 
   // For STP1
   final byte[] prefix = {'S', 'T', 'P', 1};
-  private ByteString stpPrefix = ByteString.copyFrom(prefix);
+  private final byte[] handshake = {'S', 'T', 'P', '/', '1', '\n'};
 
   private AbstractEventHandler eventHandler;
-  private UmsEventParser stp1EventHandler;
+  private EventDispatcher eventDispatcher;
+  private final EventSubscriptions eventSubscriptions = new EventSubscriptions();
   private IConnectionHandler connectionHandler;
 
   public enum State {
@@ -100,8 +111,8 @@ public class StpConnection implements SocketListener {
     this.eventHandler = eventHandler;
     this.monitor = monitor;
     requests = new ArrayBlockingQueue<ByteBuffer>(1024);
-    recvBuffer = ByteBuffer.allocateDirect(65536);
-    recvBuffer.limit(0);
+    recvBuffer = new StpFrameDecoder();
+    bufferPool = new ByteBufferPool(OUTGOING_BUFFER_SIZE, OUTGOING_BUFFER_POOL_SIZE);
 
     socket.configureBlocking(false);
 
@@ -115,7 +126,12 @@ public class StpConnection implements SocketListener {
   }
 
   private void switchToStp1() {
-    stp1EventHandler = new UmsEventParser(eventHandler);
+    eventDispatcher = new EventDispatcher(new UmsEventParser(eventHandler, eventSubscriptions),
+                                          new Runnable() {
+                                            public void run() {
+                                              updateInterest();
+                                            }
+                                          });
     sendEnableStp1();
     setState(State.HANDSHAKE);
   }
@@ -127,26 +143,45 @@ public class StpConnection implements SocketListener {
    * @param command to add to the request queue
    */
   public void send(Command command) {
-    logger.finest(command.toString());
-    byte[] payload = command.toByteArray();
-    int totalSize = payload.length + 1; // increment 1 for message type
+    // Log what is being sent.
+    logger.finest("SEND: " + command.toString());
 
-    ByteBuffer outMessageSize = encodeMessageSize(totalSize);
+    ByteBuffer buffer;
+    try {
+      buffer = encode(command);
+    } catch (IOException e) {
+      close();
+      connectionHandler.onException(e);
+      return;
+    }
 
-    // create the message
-    ByteBuffer buffer = ByteBuffer.allocateDirect(prefix.length
-                                                  + outMessageSize.position() + 1 + payload.length);
-    buffer.put(prefix, 0, prefix.length);
-    outMessageSize.flip();
-    buffer.put(outMessageSize);
-    buffer.put((byte) 1);
-    buffer.put(payload);
+    enqueue(buffer);
+  }
 
-    // Log what is being sent.
-    logger.finest("SEND: " + command.toString());
+  /**
+   * Serializes a command as a complete STP/1 message (prefix, size, type and payload) in one pass,
+   * straight into a buffer from the pool.
+   *
+   * @param command the command to encode
+   * @return a buffer ready to be written to the socket
+   * @throws IOException if the command could not be serialized
+   */
+  private ByteBuffer encode(Command command) throws IOException {
+    int totalSize = command.getSerializedSize() + 1; // increment 1 for message type
+    int frameSize = prefix.length + CodedOutputStream.computeRawVarint32Size(totalSize) + totalSize;
+
+    ByteBuffer buffer = bufferPool.acquire(frameSize);
+    CodedOutputStream output = CodedOutputStream.newInstance(buffer.array(),
+                                                             buffer.arrayOffset(), frameSize);
+    output.writeRawBytes(prefix);
+    output.writeRawVarint32(totalSize);
+    output.writeRawByte(1);
+    command.writeTo(output);
+    output.checkNoSpaceLeft();
 
-    requests.add(buffer);
-    monitor.modify(socketChannel, this, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    buffer.position(0);
+    buffer.limit(frameSize);
+    return buffer;
   }
 
   public void sendEnableStp1() {
@@ -180,10 +215,40 @@ public class StpConnection implements SocketListener {
       connectionHandler.onException(e);
       return;
     }
-    ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
-    buffer.put(bytes);
+    enqueue(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Adds a message to the send queue.  The selector is only woken up when the queue goes from empty
+   * to non-empty; messages queued while a write is already pending are picked up by the same
+   * canWrite() call.
+   *
+   * @param buffer the message to send
+   */
+  private void enqueue(ByteBuffer buffer) {
     requests.add(buffer);
-    monitor.modify(socketChannel, this, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    if (writePending.compareAndSet(false, true)) {
+      updateInterest();
+    }
+  }
+
+  /**
+   * @return whether reading is paused until the queued events have been handled
+   */
+  private boolean isReadingPaused() {
+    return eventDispatcher != null && eventDispatcher.isPaused();
+  }
+
+  /**
+   * Asks the selector to watch for the operations currently wanted: reads unless they are paused,
+   * and writes if there are messages to send.
+   */
+  private void updateInterest() {
+    int ops = isReadingPaused() ? 0 : SelectionKey.OP_READ;
+    if (writePending.get()) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    monitor.modify(socketChannel, this, ops);
   }
 
   public boolean canRead(SelectableChannel channel) throws IOException {
@@ -198,79 +263,55 @@ public class StpConnection implements SocketListener {
           "We dont have a socket :-)");
     }
 
-    // Read as much data as possible into buffer.
-    ByteBuffer readBuffer = ByteBuffer.allocateDirect(1000);
-    int readSize = 0;
+    // Read interest may have been restored by a write while reading was paused
+    if (isReadingPaused()) {
+      updateInterest();
+      return true;
+    }
 
-    // Continue to read data and read messages until there are no messages
-    boolean didNotFindAnyMessage = false;
-    while (!didNotFindAnyMessage) {
-      logger.finest("canReadLoop!");
+    // Read data straight into the receive buffer and parse as many messages as possible after each
+    // read, until there is no more data
+    int readSize;
+    do {
+      try {
+        // do we have a socket
+        if (socketChannel == null) {
+          readSize = -1;
+        } else {
+          readSize = recvBuffer.read(socketChannel);
+        }
+      } catch (IOException ex) {
+        logger.warning("Channel closed, causing exception: " + ex.getMessage());
+        readSize = -1; // Same as error from socketChannel.read
+      }
 
-      // Read as much data as possible (until recvBuffer is full OR we don't get
-      // any more data)
-      do {
-        readBuffer.clear();
+      if (readSize < 0) {
         try {
-          // do we have a socket
-          if (socketChannel == null) {
-            readSize = -1;
-
-            // do we have room in our buffer?
-          } else {
-
-            readSize = socketChannel.read(readBuffer);
-            if (readSize > 0) {
-              readBuffer.limit(readSize);
-              readBuffer.position(0);
-            }
-
-          }
-
-        } catch (IOException ex) {
-          logger.warning("Channel closed, causing exception: " + ex.getMessage());
-          readSize = -1; // Same as error from socketChannel.read
+          logger.log(Level.FINER, "Channel closed: {0}",
+                     socketChannel.socket().getInetAddress().getHostName());
+        } catch (NullPointerException e) {
+          // ignore
         }
+        connectionHandler.onDisconnect();
+        monitor.remove(socketChannel);
+        return false;
+      }
 
-        if (readSize < 0) {
-          try {
-            logger.log(Level.FINER, "Channel closed: {0}",
-                       socketChannel.socket().getInetAddress().getHostName());
-          } catch (NullPointerException e) {
-            // ignore
-          }
-          connectionHandler.onDisconnect();
-          monitor.remove(socketChannel);
-          return false;
-        } else if (readSize > 0) {
-
-          // Double buffer size if needed!
-          if (recvBuffer.limit() + readBuffer.limit() >= recvBuffer.capacity()) {
-            logger.finest("Doubled the size of our recv buffer!");
-            ByteBuffer newRecvBuffer = ByteBuffer.allocate(recvBuffer.capacity() * 2);
-            newRecvBuffer.clear();
-            recvBuffer.position(0);
-            newRecvBuffer.limit(recvBuffer.limit());
-            newRecvBuffer.position(0);
-            newRecvBuffer.put(recvBuffer);
-            newRecvBuffer.position(0);
-            recvBuffer = newRecvBuffer;
-          }
+      logger.finest("did read " + readSize + " bytes, new buffer size = "
+                    + recvBuffer.available());
 
-          recvBuffer.position(recvBuffer.limit());
-          recvBuffer.limit(recvBuffer.limit() + readSize);// increase limit!
-          recvBuffer.put(readBuffer);
-          logger.finest("did read " + readSize + " bytes, new buffer size = "
-                        + recvBuffer.limit());
-        }
-      } while (readSize > 0);
+      // Read as many messages as possible
+      while (readMessage()) {
+        // continue
+      }
 
-      // Read as many messages as possible, and only
-      didNotFindAnyMessage = true;
-      while (readMessage(recvBuffer)) {
-        didNotFindAnyMessage = false;
+      // Leave the rest in the socket until the handlers have caught up
+      if (eventDispatcher != null && eventDispatcher.pauseIfFull()) {
+        updateInterest();
+        return true;
       }
-    }
+    } while (readSize > 0);
+
     return true;
   }
 
@@ -281,26 +322,60 @@ public class StpConnection implements SocketListener {
       throw new IOException("We don't have a socket :-)");
     }
 
-    int totalWritten = 0;
-    while (!requests.isEmpty()) {
-      ByteBuffer buffer = requests.poll();
-      buffer.flip();
-      int written = 0;
-
-      do {
-        written = socketChannel.write(buffer);
-        if (written <= 0) {
+    long totalWritten = 0;
+    while (true) {
+      // Gather all pending messages into one write
+      int count = 0;
+      for (ByteBuffer buffer : requests) {
+        if (count == writeBatch.length) {
           break;
         }
-        if (written > 0) {
-          totalWritten += written;
+        writeBatch[count++] = buffer;
+      }
+
+      if (count == 0) {
+        break;
+      }
+
+      long written;
+      do {
+        written = socketChannel.write(writeBatch, 0, count);
+        totalWritten += written;
+      } while (written > 0 && writeBatch[count - 1].hasRemaining());
+
+      // Release the buffers that have been fully written.  A partially written buffer is kept at the
+      // head of the queue until the socket is writable again.
+      for (int i = 0; i < count; i++) {
+        ByteBuffer buffer = writeBatch[i];
+        writeBatch[i] = null;
+        if (!buffer.hasRemaining() && requests.peek() == buffer) {
+          requests.poll();
+          bufferPool.release(buffer);
         }
-      } while (buffer.hasRemaining());
+      }
+
+      if (written <= 0) {
+        break;
+      }
     }
 
     logger.finest("Wrote " + totalWritten + " bytes");
 
-    return (!requests.isEmpty());
+    if (requests.isEmpty()) {
+      writePending.set(false);
+
+      // A message may have been queued after the queue was found empty, but before the flag was
+      // cleared, without waking up the selector
+      if (requests.isEmpty() || !writePending.compareAndSet(false, true)) {
+        if (isReadingPaused()) {
+          // Dropping the write interest would leave none, which cancels the key
+          updateInterest();
+          return true;
+        }
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
@@ -312,6 +387,10 @@ public class StpConnection implements SocketListener {
     }
 
     monitor.remove(socketChannel);
+    if (eventDispatcher != null) {
+      eventDispatcher.shutdown();
+    }
+
     try {
       socketChannel.close();
     } catch (IOException ignored) {
@@ -351,168 +430,190 @@ public class StpConnection implements SocketListener {
     switchToStp1();
   }
 
-  private void signalResponse(int tag, Response response) {
-    connectionHandler.onResponseReceived(tag, response);
+  private void signalResponse(final int tag, final Response response) {
+    if (eventDispatcher == null) {
+      connectionHandler.onResponseReceived(tag, response);
+      return;
+    }
+
+    // The response must not overtake the runtime events received before it
+    eventDispatcher.runAfterOrderedEvents(new Runnable() {
+      public void run() {
+        connectionHandler.onResponseReceived(tag, response);
+      }
+    });
   }
 
   private void signalEvent(Event event) {
     logger.finest("EVENT " + event.toString());
-    stp1EventHandler.handleEvent(event);
+    eventDispatcher.dispatch(event);
+  }
+
+  /**
+   * @return the events that are decoded and passed on to the event handler
+   */
+  public EventSubscriptions getEventSubscriptions() {
+    return eventSubscriptions;
+  }
+
+  /**
+   * @return the number of received events waiting to be handled
+   */
+  public int getEventQueueDepth() {
+    return (eventDispatcher == null) ? 0 : eventDispatcher.getQueueDepth();
   }
 
   /**
-   * Reads a message from the buffer, and pops the used data out of the buffer.
+   * Reads a message from the receive buffer, and consumes the used data.  Messages are parsed in
+   * place, so nothing is copied and nothing is consumed until a complete message is available.
    *
-   * @param buffer the buffer containing messages
    * @return true if we got a message from the buffer
    */
-  private boolean readMessage(ByteBuffer buffer) {
-
-    // logger.finest("readMessage: " + bytesRead + " bytes read, remaining=" +
-    // remainingBytes.length + ", state=" + state.toString() + ", recurse=" +
-    // recurse);
+  private boolean readMessage() {
+    int available = recvBuffer.available();
+    if (available <= 0) {
+      logger.finest("no messages in empty buffer");
+      return false;
+    }
 
-    buffer.position(0);
     int bytesWeHaveBeenreading = 0;
 
-    switch (state) {
-      case SERVICELIST:
-        StringBuilder builder = new StringBuilder();
-        builder.append(buffer.asCharBuffer());
-        parseServiceList(builder.toString());
-        buffer.position(0);// reset position!
-        bytesWeHaveBeenreading = buffer.limit(); // bytesWeHaveBeenreading = all
-        // bytes in buffer!
-        break;
-
-      case HANDSHAKE:
-        if (buffer.limit() >= 6) {
-          byte[] dst = new byte[6];
-          buffer.position(0);// read from start!
-          buffer.get(dst);
-          buffer.position(0);// reset position!
-          bytesWeHaveBeenreading = 6; // 6 bytes will be removed from buffer
-          String handShake = new String(dst);
-          if (!handShake.equals("STP/1\n")) {
-            close();
-            connectionHandler.onException(new WebDriverException(
-                "Scope Transport Protocol Error : Handshake"));
-          } else {
-            setState(State.EMPTY);
-            connectionHandler.onHandshake(true);
+    try {
+      switch (state) {
+        case SERVICELIST:
+          // The service list is the only thing sent before the handshake, so all bytes in the
+          // buffer belongs to it
+          parseServiceList(recvBuffer.readString(available - (available % 2), "UTF-16BE"));
+          if (recvBuffer.available() > 0) {
+            recvBuffer.skip(recvBuffer.available());
           }
-        }
-        break;
-
-      case EMPTY: // read 4 byte header: STP\0
-        if (buffer.limit() >= 4) {
-          byte[] headerPrefix = new byte[4];
-          buffer.get(headerPrefix);
-          buffer.position(0);
-          bytesWeHaveBeenreading = 4;
-          ByteString incomingPrefix = ByteString.copyFrom(headerPrefix);
-          if (stpPrefix.equals(incomingPrefix)) {
-            setState(State.STP);
-            /*
-            if(buffer.hasRemaining()){
-                buffer.compact();
-                readMessage(buffer, buffer.position(), true);
+          return true;
+
+        case HANDSHAKE:
+          if (available >= handshake.length) {
+            bytesWeHaveBeenreading = handshake.length;
+            if (!recvBuffer.startsWith(handshake)) {
+              close();
+              connectionHandler.onException(new WebDriverException(
+                  "Scope Transport Protocol Error : Handshake"));
             } else {
-                buffer.clear();
+              setState(State.EMPTY);
+              connectionHandler.onHandshake(true);
             }
-            */
-          } else {
-            close();
-            connectionHandler.onException(new WebDriverException(
-                "Scope Transport Protocol Error : Header"));
           }
-        }
-        break;
-
-      case STP:
-        // Try to read size
-        buffer.position(0);
-        if (buffer.limit() <= 0) {
-          logger.finest("STP: Empty buffer");
           break;
-        }
-        int messageSize = readRawVarint32(buffer);// read part of buffer
-        bytesWeHaveBeenreading = buffer.position();
-        buffer.position(0);
-
-        // If we got size, read more, if not just leave it!
-        if (buffer.limit() >= bytesWeHaveBeenreading + messageSize) {
-          buffer.position(bytesWeHaveBeenreading);
 
-          // Read type and Payload!
-          int messageType = buffer.get();
-          bytesWeHaveBeenreading += 1;
-
-          byte[] payload = new byte[--messageSize];
-          buffer.get(payload);
-          buffer.position(0);
-
-          bytesWeHaveBeenreading += messageSize; // 32 bits = 4 bytes :-)
-
-          setState(State.EMPTY);
+        case EMPTY: // read 4 byte header: STP\1
+          if (available >= prefix.length) {
+            bytesWeHaveBeenreading = prefix.length;
+            if (recvBuffer.startsWith(prefix)) {
+              setState(State.STP);
+            } else {
+              close();
+              connectionHandler.onException(new WebDriverException(
+                  "Scope Transport Protocol Error : Header"));
+            }
+          }
+          break;
 
+        case STP:
+          // Try to read size, if not fully received just leave it
+          int messageSize;
           try {
-            processMessage(messageType, payload);
+            messageSize = recvBuffer.peekMessageSize();
           } catch (IOException e) {
             close();
             connectionHandler.onException(new WebDriverException(
-                "Error while processing the message: " + e.getMessage()));
+                "Scope Transport Protocol Error : " + e.getMessage()));
+            return false;
           }
-        } else {
-          // 4 + messageSize because of the int at the beginning
-          logger.finest("tried to read a message, but expected " + (4 + messageSize)
-                        + " bytes, and only got " + buffer.limit());
+          if (messageSize < 0) {
+            break;
+          }
+          int sizeLength = recvBuffer.getLastVarintSize();
 
-          buffer.position(0);
-          bytesWeHaveBeenreading = 0;
-        }
-        break;
+          if (available >= sizeLength + messageSize) {
+            // Read type and payload in place
+            int messageType = recvBuffer.peek(sizeLength);
+
+            bytesWeHaveBeenreading = sizeLength + messageSize;
+            setState(State.EMPTY);
 
+            try {
+              processMessage(messageType, sizeLength + 1, messageSize - 1);
+            } catch (IOException e) {
+              close();
+              connectionHandler.onException(new WebDriverException(
+                  "Error while processing the message: " + e.getMessage()));
+            }
+          } else {
+            logger.finest("tried to read a message, but expected " + (sizeLength + messageSize)
+                          + " bytes, and only got " + available);
+          }
+          break;
+      }
+    } catch (IOException e) {
+      close();
+      connectionHandler.onException(new WebDriverException(
+          "Error while reading the message: " + e.getMessage()));
+      return false;
     }
 
-    // Pop number of read bytes from
+    // Pop number of read bytes from buffer
     if (bytesWeHaveBeenreading > 0) {
-
-      // Pop X bytes, and keep message for the rest
-      int rest = buffer.limit() - bytesWeHaveBeenreading;
-      if (rest <= 0) {
-        buffer.clear();
-        buffer.limit(0);
-      } else {
-        byte[] temp = new byte[rest];
-
-        buffer.position(bytesWeHaveBeenreading);
-        buffer.get(temp, 0, rest);
-
-        buffer.clear();
-        buffer.limit(rest);
-        buffer.position(0);
-        buffer.put(temp, 0, rest);
-        buffer.position(0);// set position back to start!
-      }
+      recvBuffer.skip(bytesWeHaveBeenreading);
 
       logger.finest("Did read message of " + bytesWeHaveBeenreading
-                    + " bytes, new buffer size = " + buffer.limit());
+                    + " bytes, new buffer size = " + recvBuffer.available());
 
       return true; // We did read a message :-)
     } else {
-      if (buffer.limit() > 0) {
-        logger.finest("did NOT read message from buffer of size = "
-                      + buffer.limit());
-      } else {
-        logger.finest("no messages in empty buffer");
-      }
+      logger.finest("did NOT read message from buffer of size = " + available);
       return false;
     }
   }
 
-  private void processMessage(int stpType, byte[] payload) throws IOException {
+  /**
+   * Reads the service and event id from the header of an event, without touching its payload.
+   *
+   * @param input a stream positioned at the start of the event
+   * @return true if the event is subscribed to, or if it has no complete header
+   */
+  private boolean isSubscribed(CodedInputStream input) throws IOException {
+    String service = null;
+    int eventId = -1;
+
+    while (service == null || eventId < 0) {
+      int tag = input.readTag();
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case 0: // end of message, leave it to the parser to complain
+          return true;
+        case 1:
+          service = input.readString();
+          break;
+        case 2:
+          eventId = input.readUInt32();
+          break;
+        default:
+          if (!input.skipField(tag)) {
+            return true;
+          }
+      }
+    }
+
+    return eventSubscriptions.isSubscribed(service, eventId);
+  }
+
+  /**
+   * Decodes and dispatches a message which has been fully received.
+   *
+   * @param stpType the STP message type
+   * @param offset  the offset of the message payload from the read position of the buffer
+   * @param length  the length of the payload
+   */
+  private void processMessage(int stpType, int offset, int length) throws IOException {
     logger.finest("processMessage: " + stpType);
+    CodedInputStream payload = recvBuffer.slice(offset, length);
 
     switch (stpType) {
       //case 1: //command //commands are not supposed to be received
@@ -525,7 +626,11 @@ public class StpConnection implements SocketListener {
         break;
 
       case 3: // event
-        Event event = Event.parseFrom(payload);
+        // Only decode the events somebody is listening to
+        if (!isSubscribed(payload)) {
+          break;
+        }
+        Event event = Event.parseFrom(recvBuffer.slice(offset, length));
         logger.finest("RECV EVENT: " + event.toString());
         signalEvent(event);
         break;
@@ -555,54 +660,4 @@ public class StpConnection implements SocketListener {
     }
   }
 
-  // protobuf methods, taken from the protobuf library by Google
-  // explained: http://code.google.com/apis/protocolbuffers/docs/encoding.html#varints
-  private int readRawVarint32(ByteBuffer bytes) {
-    byte tmp = bytes.get();
-    if (tmp >= 0) {
-      return tmp;
-    }
-    int result = tmp & 0x7f;
-    if ((tmp = bytes.get()) >= 0) {
-      result |= tmp << 7;
-    } else {
-      result |= (tmp & 0x7f) << 7;
-      if ((tmp = bytes.get()) >= 0) {
-        result |= tmp << 14;
-      } else {
-        result |= (tmp & 0x7f) << 14;
-        if ((tmp = bytes.get()) >= 0) {
-          result |= tmp << 21;
-        } else {
-          result |= (tmp & 0x7f) << 21;
-          result |= (tmp = bytes.get()) << 28;
-          if (tmp < 0) {
-            // Discard upper 32 bits.
-            for (int i = 0; i < 5; i++) {
-              if (bytes.get() >= 0) {
-                return result;
-              }
-            }
-            connectionHandler.onException(new WebDriverException(
-                "Error while reading raw int"));
-          }
-        }
-      }
-    }
-    return result;
-  }
-
-  private ByteBuffer encodeMessageSize(int value) {
-    ByteBuffer buffer = ByteBuffer.allocateDirect(CodedOutputStream.computeRawVarint32Size(value));
-    while (true) {
-      if ((value & ~0x7F) == 0) {
-        buffer.put((byte) (value));
-        return buffer;
-      } else {
-        buffer.put((byte) ((value & 0x7F) | 0x80));
-        value >>>= 7;
-      }
-    }
-  }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,334 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.scope.stp;
+
+import com.google.protobuf.CodedInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A ring buffer holding the bytes received on an STP connection.  Data is read straight from the
+ * channel into the ring, and messages are parsed in place: the header, message size and message
+ * type are peeked at without copying, and the payload is handed to the protobuf parser as a {@link
+ * CodedInputStream} over a slice of the ring.
+ *
+ * Consumed bytes are released by moving the read index forward, so a partial frame at the end of
+ * the buffer is never moved around.  The ring only grows when a single frame is larger than the
+ * current capacity.
+ *
+ * This class is not thread safe; it is only meant to be used from the thread owning the socket.
+ */
+public class StpFrameDecoder {
+
+  private static final int DEFAULT_CAPACITY = 65536;
+
+  private byte[] ring;
+  private ByteBuffer ringView;
+  private int mask;
+
+  // Both indices are ever increasing, and are mapped into the ring using the mask.  Overflow is
+  // fine as long as the distance between them never exceeds the capacity.
+  private int readIndex = 0;
+  private int writeIndex = 0;
+
+  // Size in bytes of the last varint read by peekVarint32()
+  private int lastVarintSize = 0;
+
+  public StpFrameDecoder() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity the initial capacity of the ring, which is rounded up to the next power of two
+   */
+  public StpFrameDecoder(int capacity) {
+    allocate(Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1);
+  }
+
+  private void allocate(int capacity) {
+    ring = new byte[capacity];
+    ringView = ByteBuffer.wrap(ring);
+    mask = capacity - 1;
+  }
+
+  public int capacity() {
+    return ring.length;
+  }
+
+  /**
+   * @return the number of bytes received, but not yet consumed
+   */
+  public int available() {
+    return writeIndex - readIndex;
+  }
+
+  /**
+   * Reads as much as fits into the largest contiguous free region of the ring.  If the ring is full
+   * its capacity is doubled first, as that means the frame currently being received does not fit.
+   *
+   * @param channel the channel to read from
+   * @return the number of bytes read, possibly zero, or -1 if the channel has reached end-of-stream
+   * @throws IOException if an I/O error occurs
+   */
+  public int read(ReadableByteChannel channel) throws IOException {
+    if (available() == ring.length) {
+      grow();
+    }
+
+    int start = writeIndex & mask;
+    int end = (readIndex & mask);
+    if (end <= start) {
+      end = ring.length;
+    }
+
+    ringView.limit(end);
+    ringView.position(start);
+
+    int read = channel.read(ringView);
+    if (read > 0) {
+      writeIndex += read;
+    }
+    return read;
+  }
+
+  /**
+   * Appends the remaining bytes of the given buffer.  Used when data does not come from a channel.
+   */
+  public void write(ByteBuffer buffer) {
+    while (buffer.hasRemaining()) {
+      if (available() == ring.length) {
+        grow();
+      }
+
+      int start = writeIndex & mask;
+      int end = (readIndex & mask);
+      if (end <= start) {
+        end = ring.length;
+      }
+
+      int length = Math.min(end - start, buffer.remaining());
+      buffer.get(ring, start, length);
+      writeIndex += length;
+    }
+  }
+
+  private void grow() {
+    byte[] old = ring;
+    int oldMask = mask;
+    int size = available();
+
+    allocate(old.length * 2);
+    copyOut(old, oldMask, readIndex, ring, 0, size);
+
+    readIndex = 0;
+    writeIndex = size;
+  }
+
+  private static void copyOut(byte[] source, int sourceMask, int index, byte[] dst, int offset,
+                              int length) {
+    int start = index & sourceMask;
+    int first = Math.min(length, source.length - start);
+    System.arraycopy(source, start, dst, offset, first);
+    if (first < length) {
+      System.arraycopy(source, 0, dst, offset + first, length - first);
+    }
+  }
+
+  /**
+   * Gets the byte at the given offset from the read position, without consuming anything.
+   */
+  public byte peek(int offset) {
+    if (offset < 0 || offset >= available()) {
+      throw new IndexOutOfBoundsException("offset " + offset + ", available " + available());
+    }
+    return ring[(readIndex + offset) & mask];
+  }
+
+  /**
+   * Checks whether the unconsumed data starts with the given bytes.  Callers should make sure that
+   * enough data is available first.
+   */
+  public boolean startsWith(byte[] bytes) {
+    if (available() < bytes.length) {
+      return false;
+    }
+
+    for (int i = 0; i < bytes.length; i++) {
+      if (peek(i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads a protobuf varint at the given offset from the read position, without consuming it.  The
+   * number of bytes the varint occupies is available from {@link #getLastVarintSize()}.
+   *
+   * @param offset the offset to start reading at
+   * @return the decoded value, or -1 if the varint is not fully received yet, in which case {@link
+   *         #getLastVarintSize()} is 0
+   * @throws IOException if the varint is malformed
+   */
+  public int peekVarint32(int offset) throws IOException {
+    int result = 0;
+    int available = available();
+    lastVarintSize = 0;
+
+    // protobuf methods, taken from the protobuf library by Google
+    // explained: http://code.google.com/apis/protocolbuffers/docs/encoding.html#varints
+    for (int i = 0; i < 10; i++) {
+      if (offset + i >= available) {
+        return -1;
+      }
+
+      byte b = peek(offset + i);
+      if (i < 5) {
+        result |= (b & 0x7f) << (7 * i);
+      }
+
+      if (b >= 0) {
+        lastVarintSize = i + 1;
+        return result;
+      }
+    }
+
+    throw new IOException("Malformed varint in STP message size");
+  }
+
+  /**
+   * Reads the size of the STP/1 message at the read position, without consuming it.  The size
+   * covers the type byte as well as the payload, so it is at least 1.
+   *
+   * @return the size, or -1 if it is not fully received yet
+   * @throws IOException if the size is malformed or less than 1
+   */
+  public int peekMessageSize() throws IOException {
+    int size = peekVarint32(0);
+    if (lastVarintSize == 0) {
+      return -1;
+    }
+    if (size < 1) {
+      throw new IOException("Invalid STP message size " + (size & 0xffffffffL));
+    }
+    return size;
+  }
+
+  public int getLastVarintSize() {
+    return lastVarintSize;
+  }
+
+  /**
+   * Marks the given number of bytes as consumed, making the space available for new data.
+   */
+  public void skip(int length) {
+    if (length < 0 || length > available()) {
+      throw new IndexOutOfBoundsException("length " + length + ", available " + available());
+    }
+
+    readIndex += length;
+
+    // Start from the beginning of the ring when empty, so the next read is a single contiguous one
+    if (readIndex == writeIndex) {
+      readIndex = writeIndex = 0;
+    }
+  }
+
+  /**
+   * Consumes the given number of bytes and decodes them as a string.
+   */
+  public String readString(int length, String charsetName) throws UnsupportedEncodingException {
+    byte[] bytes = new byte[length];
+    copyOut(ring, mask, readIndex, bytes, 0, length);
+    skip(length);
+    return new String(bytes, charsetName);
+  }
+
+  /**
+   * Creates a stream over a region of the unconsumed data, for use by the protobuf parsers.  The
+   * region is not consumed, and stays valid until it is skipped.
+   *
+   * When the region is contiguous the stream reads straight from the ring.  A region wrapping
+   * around the end of the ring is read through a stream concatenating the two parts.
+   *
+   * @param offset the offset from the read position where the region starts
+   * @param length the length of the region
+   * @return a stream limited to the region
+   */
+  public CodedInputStream slice(int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > available()) {
+      throw new IndexOutOfBoundsException("offset " + offset + ", length " + length +
+                                          ", available " + available());
+    }
+
+    int start = (readIndex + offset) & mask;
+    if (start + length <= ring.length) {
+      return CodedInputStream.newInstance(ring, start, length);
+    }
+
+    CodedInputStream input = CodedInputStream.newInstance(new RingInputStream(start, length));
+    input.setSizeLimit(length);
+    return input;
+  }
+
+  private class RingInputStream extends InputStream {
+
+    private int position;
+    private int remaining;
+
+    public RingInputStream(int position, int remaining) {
+      this.position = position;
+      this.remaining = remaining;
+    }
+
+    @Override
+    public int read() {
+      if (remaining == 0) {
+        return -1;
+      }
+
+      int b = ring[position] & 0xff;
+      position = (position + 1) & mask;
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] dst, int offset, int length) {
+      if (remaining == 0) {
+        return -1;
+      }
+
+      int count = Math.min(Math.min(length, remaining), ring.length - position);
+      System.arraycopy(ring, position, dst, offset, count);
+      position = (position + count) & mask;
+      remaining -= count;
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return remaining;
+    }
+
+  }
+
+}
@@ -19,6 +19,7 @@ package com.opera.core.systems.scope.stp;
 import com.opera.core.systems.scope.handlers.AbstractEventHandler;
 import com.opera.core.systems.scope.handlers.IConnectionHandler;
 import com.opera.core.systems.util.SocketMonitor;
+import com.opera.core.systems.util.SocketMonitorPool;
 
 import java.io.IOException;
 import java.util.logging.Logger;
@@ -28,7 +29,8 @@ import java.util.logging.Logger;
  * those connections.
  *
  * This thread also owns the SocketMonitor instance - so all network traffic and communication is
- * happening on this thread.
+ * happening on this thread.  Alternatively the traffic can be handled by a monitor of the shared
+ * {@link SocketMonitorPool}, together with the traffic of the other drivers in the JVM.
  *
  * @author Jan Vidar Krey <janv@opera.com>
  */
@@ -38,19 +40,54 @@ public class StpThread extends Thread {
   private StpConnectionListener listener;
   private volatile boolean cancelled;
   private SocketMonitor monitor;
+  private boolean shared;
 
   public StpThread(int port, IConnectionHandler handler,
                    AbstractEventHandler eventHandler, boolean manualConnect)
       throws IOException {
-    monitor = new SocketMonitor();
-    listener = new StpConnectionListener(port, handler, eventHandler, manualConnect, monitor);
+    this(port, handler, eventHandler, manualConnect, false);
+  }
+
+  /**
+   * @param shared whether to use a monitor of the JVM wide {@link SocketMonitorPool} instead of
+   *               polling a monitor of our own, in which case this thread is never started
+   */
+  public StpThread(int port, IConnectionHandler handler,
+                   AbstractEventHandler eventHandler, boolean manualConnect, boolean shared)
+      throws IOException {
+    this.shared = shared;
+    monitor = shared ? SocketMonitorPool.getInstance().acquire() : new SocketMonitor();
+    try {
+      listener = new StpConnectionListener(port, handler, eventHandler, manualConnect, monitor);
+    } catch (IOException e) {
+      if (shared) {
+        SocketMonitorPool.getInstance().release(monitor);
+      }
+      throw e;
+    }
     setName("stp-thread");
   }
 
+  @Override
+  public synchronized void start() {
+    // The shared monitor is already being polled by the pool
+    if (!shared) {
+      super.start();
+    }
+  }
+
   public void shutdown() {
+    if (cancelled) {
+      return;
+    }
+
     cancelled = true;
     listener.stop();
-    monitor.stop();
+    if (shared) {
+      SocketMonitorPool.getInstance().release(monitor);
+    } else {
+      monitor.stop();
+    }
   }
 
   @Override
@@ -21,6 +21,7 @@ import com.google.protobuf.GeneratedMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.opera.core.systems.scope.CoreUtilsCommand;
 import com.opera.core.systems.scope.DesktopWindowManagerCommand;
+import com.opera.core.systems.scope.ESCommand;
 import com.opera.core.systems.scope.ESDebuggerCommand;
 import com.opera.core.systems.scope.SelftestCommand;
 import com.opera.core.systems.scope.WindowManagerCommand;
@@ -39,18 +40,107 @@ import com.opera.core.systems.scope.protos.UmsProtos.Event;
 import com.opera.core.systems.scope.protos.WmProtos.WindowID;
 import com.opera.core.systems.scope.protos.WmProtos.WindowInfo;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class UmsEventParser {
 
   private AbstractEventHandler eventHandler;
+  private EventSubscriptions subscriptions;
 
   public UmsEventParser(AbstractEventHandler eventHandler) {
+    this(eventHandler, new EventSubscriptions());
+  }
+
+  /**
+   * The events of the services which are only subscribed to while something listens to them, with
+   * {@link #subscribeService(EventSubscriptions, String)}.
+   */
+  private static final Map<String, int[]> SERVICE_EVENTS = new HashMap<String, int[]>();
+
+  static {
+    SERVICE_EVENTS.put("console-logger", new int[]{1});
+    SERVICE_EVENTS.put("http-logger", new int[]{1});
+    SERVICE_EVENTS.put("desktop-window-manager", new int[]{
+        DesktopWindowManagerCommand.WINDOW_SHOWN.getCommandID(),
+        DesktopWindowManagerCommand.WINDOW_UPDATED.getCommandID(),
+        DesktopWindowManagerCommand.WINDOW_ACTIVATED.getCommandID(),
+        DesktopWindowManagerCommand.WINDOW_CLOSED.getCommandID(),
+        DesktopWindowManagerCommand.WINDOW_LOADED.getCommandID(),
+        DesktopWindowManagerCommand.MENU_SHOWN.getCommandID(),
+        DesktopWindowManagerCommand.MENU_CLOSED.getCommandID(),
+        DesktopWindowManagerCommand.MENU_PRESSED.getCommandID()});
+    SERVICE_EVENTS.put("selftest", new int[]{
+        SelftestCommand.OUTPUT.getCommandID(),
+        SelftestCommand.FINISHED.getCommandID()});
+  }
+
+  /**
+   * Creates a parser, and subscribes to the events which are always listened to: those of the
+   * window-manager, ecmascript and ecmascript-debugger services, which keep track of windows and
+   * runtimes, and core's OnIdle.  The events of other services are only decoded while they are
+   * subscribed to with {@link #subscribeService(EventSubscriptions, String)}.
+   *
+   * @param eventHandler  the handler to pass decoded events to
+   * @param subscriptions the subscriptions to register the handled events with
+   */
+  public UmsEventParser(AbstractEventHandler eventHandler, EventSubscriptions subscriptions) {
     this.eventHandler = eventHandler;
+    this.subscriptions = subscriptions;
+
+    subscriptions.subscribe(ESDebuggerCommand.RUNTIME_STARTED);
+    subscriptions.subscribe(ESDebuggerCommand.RUNTIME_STOPPED);
+
+    subscriptions.subscribe(WindowManagerCommand.WINDOW_ACTIVATED);
+    subscriptions.subscribe(WindowManagerCommand.WINDOW_CLOSED);
+    subscriptions.subscribe(WindowManagerCommand.WINDOW_UPDATED);
+    subscriptions.subscribe(WindowManagerCommand.WINDOW_LOADED);
+
+    subscriptions.subscribe(ESCommand.ON_READY_STATE_CHANGED);
+
+    // There is no handler for core's OnActive, which is sent every time Opera stops being idle
+    subscriptions.subscribe(CoreUtilsCommand.ONIDLE);
+  }
+
+  /**
+   * Subscribes to the events handled for a service which are not always listened to:
+   * console-logger, http-logger, desktop-window-manager or selftest.
+   *
+   * @param subscriptions the subscriptions of the connection
+   * @param service       the name of the service
+   */
+  public static void subscribeService(EventSubscriptions subscriptions, String service) {
+    for (int eventId : SERVICE_EVENTS.get(service)) {
+      subscriptions.subscribe(service, eventId);
+    }
+  }
+
+  /**
+   * Undoes {@link #subscribeService(EventSubscriptions, String)}.  Events of the service already
+   * received are dropped.
+   *
+   * @param subscriptions the subscriptions of the connection
+   * @param service       the name of the service
+   */
+  public static void unsubscribeService(EventSubscriptions subscriptions, String service) {
+    for (int eventId : SERVICE_EVENTS.get(service)) {
+      subscriptions.unsubscribe(service, eventId);
+    }
+  }
+
+  public EventSubscriptions getSubscriptions() {
+    return subscriptions;
   }
 
   public void handleEvent(Event event) {
     String service = event.getService();
     int eventId = event.getCommandID();
 
+    // May have been unsubscribed while the event was queued
+    if (!subscriptions.isSubscribed(service, eventId)) {
+      return;
+    }
+
     if (service.equals("ecmascript-debugger")) {
       switch (ESDebuggerCommand.get(eventId)) {
       case RUNTIME_STARTED:
@@ -190,6 +190,47 @@ public class OperaDriverSettings {
     return (Boolean) capabilities.getCapability("opera.idle");
   }
 
+  /**
+   * Whether the connection to Opera should be served by the socket threads shared by all drivers in
+   * the JVM.
+   *
+   * @param sharedMonitor true to share the threads, false to use a thread of its own
+   */
+  public void setUseSharedMonitor(boolean sharedMonitor) {
+    capabilities.setCapability(OperaDriver.SHARED_MONITOR, sharedMonitor);
+  }
+
+  public boolean getUseSharedMonitor() {
+    return (Boolean) capabilities.getCapability(OperaDriver.SHARED_MONITOR);
+  }
+
+  /**
+   * How many kilobytes of screenshots to keep in memory, so that Opera does not have to send the
+   * same screenshot twice.
+   *
+   * @param size the size of the cache in kilobytes
+   */
+  public void setScreenshotCacheSize(int size) {
+    capabilities.setCapability(OperaDriver.SCREENSHOT_CACHE_SIZE, size);
+  }
+
+  public int getScreenshotCacheSize() {
+    return (Integer) capabilities.getCapability(OperaDriver.SCREENSHOT_CACHE_SIZE);
+  }
+
+  /**
+   * How many kilobytes of screenshots to write to disk once they no longer fit in memory.
+   *
+   * @param size the size of the cache on disk in kilobytes, or 0 to drop the screenshots instead
+   */
+  public void setScreenshotDiskCacheSize(int size) {
+    capabilities.setCapability(OperaDriver.SCREENSHOT_DISK_CACHE_SIZE, size);
+  }
+
+  public int getScreenshotDiskCacheSize() {
+    return (Integer) capabilities.getCapability(OperaDriver.SCREENSHOT_DISK_CACHE_SIZE);
+  }
+
   /**
    * Whether OperaDriver should try and automatically launch Opera.
    *
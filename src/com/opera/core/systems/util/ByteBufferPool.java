@@ -0,0 +1,95 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of equally sized heap byte buffers.  Buffers are acquired by the threads sending
+ * data and released by the thread that has written them to the socket, so the pool is thread safe.
+ *
+ * Requests for buffers larger than the pooled size are served by a fresh allocation, and such
+ * buffers are simply dropped on release.
+ */
+public class ByteBufferPool {
+
+  private final int bufferSize;
+  private final int maxBuffers;
+
+  private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  /**
+   * @param bufferSize the capacity of the pooled buffers
+   * @param maxBuffers the maximum number of idle buffers kept by the pool
+   */
+  public ByteBufferPool(int bufferSize, int maxBuffers) {
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+  }
+
+  /**
+   * Gets a cleared buffer with at least the given capacity, and its limit set to the given size.
+   *
+   * @param size the number of bytes needed
+   * @return a buffer ready to be written to
+   */
+  public ByteBuffer acquire(int size) {
+    if (size > bufferSize) {
+      return ByteBuffer.allocate(size);
+    }
+
+    ByteBuffer buffer = buffers.poll();
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(bufferSize);
+    } else {
+      pooled.decrementAndGet();
+      buffer.clear();
+    }
+
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * Gives a buffer back to the pool.  The buffer must not be used by the caller afterwards.
+   *
+   * @param buffer the buffer to release
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() != bufferSize || buffer.isDirect()) {
+      return;
+    }
+
+    if (pooled.incrementAndGet() > maxBuffers) {
+      pooled.decrementAndGet();
+      return;
+    }
+
+    buffers.offer(buffer);
+  }
+
+  /**
+   * @return the number of idle buffers in the pool
+   */
+  public int size() {
+    return pooled.get();
+  }
+
+}
@@ -39,7 +39,9 @@ public class CapabilitiesSanitizer {
 
   private enum IntegerCapabilities {
     PORT(OperaDriver.PORT),
-    DISPLAY(OperaDriver.DISPLAY);
+    DISPLAY(OperaDriver.DISPLAY),
+    SCREENSHOT_CACHE_SIZE(OperaDriver.SCREENSHOT_CACHE_SIZE),
+    SCREENSHOT_DISK_CACHE_SIZE(OperaDriver.SCREENSHOT_DISK_CACHE_SIZE);
 
     private String value;
 
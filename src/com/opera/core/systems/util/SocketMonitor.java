@@ -23,7 +23,9 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -86,7 +88,14 @@ public class SocketMonitor {
 
   }
 
-  private LinkedList<SelectorChangeRequest> changes = new LinkedList<SelectorChangeRequest>();
+  // Changes are queued by any thread and applied by the polling thread, so the selector is only
+  // ever touched from one thread and no lock is needed
+  private final Queue<SelectorChangeRequest> changes =
+      new ConcurrentLinkedQueue<SelectorChangeRequest>();
+
+  // Whether the selector has been woken up since the changes were last applied, so that a burst of
+  // changes costs a single wakeup
+  private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
 
   public SocketMonitor() {
     try {
@@ -103,11 +112,8 @@ public class SocketMonitor {
     logger.info("Add channel: " + channel.toString() + ", mask="
         + debugMask(selectMask));
 
-    synchronized (changes) {
-      changes.add(new SocketMonitor.SelectorChangeRequest(channel,
-          Operation.ADD, selectMask, listener));
-      selector.wakeup();
-    }
+    queueChange(new SocketMonitor.SelectorChangeRequest(channel,
+        Operation.ADD, selectMask, listener));
     return true;
   }
 
@@ -118,20 +124,21 @@ public class SocketMonitor {
         + debugMask(selectMask));
     if (channel == null) return false;
 
-    synchronized (changes) {
-      changes.add(new SocketMonitor.SelectorChangeRequest(channel,
-          Operation.MODIFY, selectMask, listener));
-      selector.wakeup();
-    }
+    queueChange(new SocketMonitor.SelectorChangeRequest(channel,
+        Operation.MODIFY, selectMask, listener));
     return true;
   }
 
   public void remove(SelectableChannel channel) {
     if (channel == null) return;
     logger.info("Remove channel: " + channel.toString());
-    synchronized (changes) {
-      changes.add(new SocketMonitor.SelectorChangeRequest(channel,
-          Operation.REMOVE));
+    queueChange(new SocketMonitor.SelectorChangeRequest(channel,
+        Operation.REMOVE));
+  }
+
+  private void queueChange(SelectorChangeRequest request) {
+    changes.add(request);
+    if (wakeupPending.compareAndSet(false, true)) {
       selector.wakeup();
     }
   }
@@ -151,15 +158,11 @@ public class SocketMonitor {
   }
 
   protected boolean pollSockets(long ms) {
-    if (selector.keys().isEmpty()) {
-      return true;
-    }
-
+    // Selecting on an empty selector blocks until a channel is added, which wakes it up, rather
+    // than returning at once and making the polling thread spin
     try {
       locked = true;
-      synchronized (selector) {
-        selector.select(ms);
-      }
+      selector.select(ms);
     } catch (IOException e) {
       e.printStackTrace();
       return false;
@@ -188,36 +191,33 @@ public class SocketMonitor {
   }
 
   protected void applyChanges() {
-    synchronized (changes) {
-      if (changes.size() == 0) return;
-
-      Iterator<SocketMonitor.SelectorChangeRequest> it = changes.iterator();
-      while (it.hasNext()) {
-        try {
-          SocketMonitor.SelectorChangeRequest req = it.next();
-          req.dump();
-          switch (req.op) {
-          case ADD:
-            try {
-              req.channel.register(selector, req.mask, req.listener);
-            } catch (ClosedChannelException e) {
-              e.printStackTrace();
-            }
-            break;
-          case MODIFY:
-            SelectionKey key = req.channel.keyFor(selector);
-            if (key != null) key.interestOps(req.mask);
-            break;
-          case REMOVE:
-            SelectionKey selKey = req.channel.keyFor(selector);
-            if (selKey != null) selKey.cancel();
-            break;
+    // Cleared before draining, so a change queued after the drain wakes up the next select
+    wakeupPending.set(false);
+
+    SocketMonitor.SelectorChangeRequest req;
+    while ((req = changes.poll()) != null) {
+      try {
+        req.dump();
+        switch (req.op) {
+        case ADD:
+          try {
+            req.channel.register(selector, req.mask, req.listener);
+          } catch (ClosedChannelException e) {
+            e.printStackTrace();
           }
-        } catch (CancelledKeyException e) {
-          logger.finest("Key was cancelled - ignoring...");
+          break;
+        case MODIFY:
+          SelectionKey key = req.channel.keyFor(selector);
+          if (key != null) key.interestOps(req.mask);
+          break;
+        case REMOVE:
+          SelectionKey selKey = req.channel.keyFor(selector);
+          if (selKey != null) selKey.cancel();
+          break;
         }
+      } catch (CancelledKeyException e) {
+        logger.finest("Key was cancelled - ignoring...");
       }
-      changes.clear();
     }
   }
 
@@ -0,0 +1,135 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed set of {@link SocketMonitor}s, each polled by its own daemon thread, that is shared by
+ * all the drivers in the JVM which ask for it.  Running many drivers in one process otherwise
+ * costs a selector thread per driver, all of them mostly idle.
+ *
+ * Every user is handed the monitor with the fewest users.  The sockets registered with a monitor
+ * keep their listener as attachment, so events for a socket always reach the driver owning it.  A
+ * monitor thread is started with its first user and stopped when its last user releases it.
+ */
+public class SocketMonitorPool {
+
+  private static final Logger logger = Logger.getLogger(SocketMonitorPool.class.getName());
+
+  private static SocketMonitorPool instance;
+
+  private final Reactor[] reactors;
+  private int started = 0;
+
+  /**
+   * @param threads the number of monitor threads to spread the users over
+   */
+  public SocketMonitorPool(int threads) {
+    reactors = new Reactor[Math.max(threads, 1)];
+  }
+
+  /**
+   * @return the pool shared by the whole JVM, with one monitor thread per available processor
+   */
+  public static synchronized SocketMonitorPool getInstance() {
+    if (instance == null) {
+      instance = new SocketMonitorPool(Runtime.getRuntime().availableProcessors());
+    }
+    return instance;
+  }
+
+  /**
+   * Gets the least used monitor of the pool, starting its thread if needed.  Every call must be
+   * paired with a call to {@link #release(SocketMonitor)}.
+   *
+   * @return a monitor which is being polled
+   */
+  public synchronized SocketMonitor acquire() {
+    int index = 0;
+    for (int i = 0; i < reactors.length; i++) {
+      if (reactors[i] == null) {
+        index = i;
+        break;
+      }
+      if (reactors[i].users < reactors[index].users) {
+        index = i;
+      }
+    }
+
+    Reactor reactor = reactors[index];
+    if (reactor == null) {
+      reactor = new Reactor("stp-reactor-" + started++);
+      reactors[index] = reactor;
+      reactor.start();
+    }
+
+    reactor.users++;
+    return reactor.monitor;
+  }
+
+  /**
+   * Gives back a monitor obtained from {@link #acquire()}.  The caller must have removed all its
+   * channels from the monitor first.
+   *
+   * @param monitor the monitor to release
+   */
+  public synchronized void release(SocketMonitor monitor) {
+    for (int i = 0; i < reactors.length; i++) {
+      Reactor reactor = reactors[i];
+      if (reactor != null && reactor.monitor == monitor) {
+        if (--reactor.users == 0) {
+          reactor.shutdown();
+          reactors[i] = null;
+        }
+        return;
+      }
+    }
+  }
+
+  private static class Reactor extends Thread {
+
+    private final SocketMonitor monitor = new SocketMonitor();
+    private volatile boolean cancelled = false;
+    private int users = 0;
+
+    public Reactor(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    public void shutdown() {
+      cancelled = true;
+      monitor.stop();
+    }
+
+    @Override
+    public void run() {
+      while (!cancelled) {
+        // One misbehaving connection must not take down the others served by this thread
+        try {
+          monitor.poll(60000);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Exception in " + getName(), e);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,200 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.services.IEcmaScriptDebugger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.openqa.selenium.remote.DesiredCapabilities;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+public class ElementHandlesTest extends TestCase {
+
+  private static final int RUNTIME_ID = 3;
+  private static final int CAPACITY = 2;
+
+  /**
+   * A debugger which only records the objects released through it.
+   */
+  private static class FakeDebugger implements InvocationHandler {
+
+    private final List<Integer> released = Collections.synchronizedList(new ArrayList<Integer>());
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      if (method.getName().equals("releaseObject")) {
+        released.add((Integer) args[0]);
+      } else if (method.getName().equals("getRuntimeId")) {
+        return RUNTIME_ID;
+      }
+      return null;
+    }
+
+  }
+
+  /**
+   * A driver which does not start Opera, creating elements against a fake debugger.
+   */
+  private static class TestDriver extends OperaDriver {
+
+    private FakeDebugger fake;
+
+    public TestDriver() {
+      super(capabilities());
+    }
+
+    private static DesiredCapabilities capabilities() {
+      DesiredCapabilities capabilities = new DesiredCapabilities();
+      capabilities.setCapability(AUTOSTART, false);
+      return capabilities;
+    }
+
+    @Override
+    protected void init() {
+      fake = new FakeDebugger();
+      debugger = (IEcmaScriptDebugger) Proxy.newProxyInstance(
+          IEcmaScriptDebugger.class.getClassLoader(), new Class[]{IEcmaScriptDebugger.class},
+          fake);
+      elementHandles = new ElementHandles(debugger, CAPACITY);
+    }
+
+    @Override
+    public void quit() {
+    }
+
+  }
+
+  private TestDriver driver;
+
+  @Override
+  protected void setUp() {
+    driver = new TestDriver();
+  }
+
+  private List<Integer> released() {
+    return driver.fake.released;
+  }
+
+  /**
+   * Collects the garbage until the given number of objects are released, or a few seconds pass.
+   */
+  private void collect(int expected) throws InterruptedException {
+    for (int i = 0; i < 50 && released().size() < expected; i++) {
+      System.gc();
+      Thread.sleep(20);
+      driver.elementHandles.releaseCollected();
+    }
+  }
+
+  @Test
+  public void testCountsByRuntime() {
+    OperaWebElement first = new OperaWebElement(driver, 1);
+    OperaWebElement second = new OperaWebElement(driver, 2);
+
+    assertEquals(2, driver.elementHandles.size());
+    assertEquals(Collections.singletonMap(RUNTIME_ID, 2),
+                 driver.elementHandles.getCountsByRuntime());
+    assertTrue(driver.elementHandles.isLive(first.getObjectId()));
+    assertTrue(driver.elementHandles.isLive(second.getObjectId()));
+  }
+
+  @Test
+  public void testKeepsObjectsOverCapacity() {
+    final List<LogRecord> warnings = new ArrayList<LogRecord>();
+    Logger logger = Logger.getLogger(ElementHandles.class.getName());
+    Handler handler = new Handler() {
+      public void publish(LogRecord record) {
+        if (record.getLevel() == Level.WARNING) {
+          warnings.add(record);
+        }
+      }
+
+      public void flush() {
+      }
+
+      public void close() {
+      }
+    };
+    logger.addHandler(handler);
+
+    try {
+      OperaWebElement first = new OperaWebElement(driver, 1);
+      OperaWebElement second = new OperaWebElement(driver, 2);
+      OperaWebElement third = new OperaWebElement(driver, 3);
+      OperaWebElement fourth = new OperaWebElement(driver, 4);
+
+      assertTrue(released().isEmpty());
+      assertEquals(4, driver.elementHandles.size());
+      assertTrue(driver.elementHandles.isLive(first.getObjectId()));
+      assertTrue(driver.elementHandles.isLive(fourth.getObjectId()));
+      assertEquals(1, warnings.size());
+    } finally {
+      logger.removeHandler(handler);
+    }
+  }
+
+  @Test
+  public void testReleasesCollectedElement() throws InterruptedException {
+    new OperaWebElement(driver, 1);
+
+    collect(1);
+
+    assertEquals(Arrays.asList(1), released());
+    assertEquals(0, driver.elementHandles.size());
+  }
+
+  @Test
+  public void testSharedObjectIsReleasedWithLastElement() throws InterruptedException {
+    OperaWebElement kept = new OperaWebElement(driver, 1);
+    new OperaWebElement(driver, 1);
+
+    collect(1);
+    assertTrue(released().isEmpty());
+    assertTrue(driver.elementHandles.isLive(1));
+
+    kept = null;
+    collect(1);
+    assertEquals(Arrays.asList(1), released());
+  }
+
+  @Test
+  public void testClearReleasesNothing() throws InterruptedException {
+    new OperaWebElement(driver, 1);
+    OperaWebElement kept = new OperaWebElement(driver, 2);
+
+    System.gc();
+    driver.elementHandles.clear();
+    collect(1);
+
+    assertTrue(released().isEmpty());
+    assertEquals(0, driver.elementHandles.size());
+    assertFalse(driver.elementHandles.isLive(kept.getObjectId()));
+  }
+
+}
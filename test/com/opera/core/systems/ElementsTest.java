@@ -6,6 +6,11 @@ import junit.framework.Assert;
 import org.junit.Test;
 import org.openqa.selenium.WebElement;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class ElementsTest extends TestBase {
@@ -28,6 +33,22 @@ public class ElementsTest extends TestBase {
     Assert.assertNotSame(hash, test.getImageHash());
   }
 
+  @Test
+  public void testReadProperties() {
+    driver.get(fixture("javascript.html"));
+    List<WebElement> elements = Arrays.asList(driver.findElementById("input_email"),
+                                              driver.findElementById("log"));
+
+    List<Map<String, Object>> properties =
+        driver.readProperties(elements, "tagName", "value", "displayed", "id");
+
+    assertEquals(2, properties.size());
+    assertEquals("INPUT", properties.get(0).get("tagName"));
+    assertEquals("test@example.com", properties.get(0).get("value"));
+    assertEquals(Boolean.TRUE, properties.get(0).get("displayed"));
+    assertEquals("log", properties.get(1).get("id"));
+  }
+
   // This test sometimes causes problems. So put it last
   @Test
   public void testRightClick() {
@@ -1,5 +1,9 @@
 package com.opera.core.systems;
 
+import com.opera.core.systems.interaction.Keyboard;
+import com.opera.core.systems.interaction.Mouse;
+import com.opera.core.systems.interaction.OperaAction;
+
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -46,6 +50,15 @@ public class JavascriptTest extends TestBase {
     assertEquals(driver.findElementById("two").getAttribute("value"), "double");
   }
 
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testActionChain() {
+    WebElement one = driver.findElementById("one");
+    driver.executeActions(new OperaAction(Mouse.clickOn(one), Keyboard.type("Hello"),
+                                          Keyboard.key("left"), Keyboard.type("!")));
+    assertEquals("Hell!o", one.getAttribute("value"));
+  }
+
   @Test
   public void testWindowCount() throws Exception {
     int numWindows = driver.getWindowCount();
@@ -0,0 +1,68 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.model.KeySequence;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class KeySequenceTest extends TestCase {
+
+  @Test
+  public void testTypeLowerCase() {
+    KeySequence sequence = new KeySequence(new ArrayList<String>()).type("ab");
+    assertEquals(Arrays.asList("_keydown", "a", "_keyup", "a", "_keydown", "b", "_keyup", "b"),
+                 sequence.getActions());
+    assertEquals(4, sequence.size());
+  }
+
+  @Test
+  public void testTypeUpperCaseHoldsShift() {
+    KeySequence sequence = new KeySequence(new ArrayList<String>()).type("A");
+    assertEquals(Arrays.asList("_keydown", "Shift", "_keydown", "A", "_keyup", "A",
+                               "_keyup", "Shift"), sequence.getActions());
+    assertFalse(sequence.isPressed("shift"));
+  }
+
+  @Test
+  public void testTypeWithShiftDown() {
+    KeySequence sequence = new KeySequence(new ArrayList<String>()).down("Shift").type("aB");
+    assertEquals(Arrays.asList("_keydown", "Shift", "_keydown", "A", "_keyup", "A",
+                               "_keydown", "B", "_keyup", "B"), sequence.getActions());
+    assertTrue(sequence.isPressed("shift"));
+  }
+
+  @Test
+  public void testStartsFromPressedKeys() {
+    KeySequence sequence = new KeySequence(Arrays.asList("shift")).type("a");
+    assertEquals(Arrays.asList("_keydown", "A", "_keyup", "A"), sequence.getActions());
+  }
+
+  @Test
+  public void testReleaseAll() {
+    KeySequence sequence = new KeySequence(Arrays.asList("control")).down("alt").releaseAll();
+    assertEquals(Arrays.asList("_keydown", "alt", "_keyup", "control", "_keyup", "alt"),
+                 sequence.getActions());
+    assertTrue(sequence.getPressedKeys().isEmpty());
+  }
+
+}
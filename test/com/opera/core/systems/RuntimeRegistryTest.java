@@ -0,0 +1,123 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.protos.EcmascriptProtos.Runtime;
+import com.opera.core.systems.scope.services.ums.RuntimeRegistry;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class RuntimeRegistryTest extends TestCase {
+
+  private Runtime runtime(int runtimeId, int windowId, String framePath) {
+    return Runtime.newBuilder()
+        .setRuntimeID(runtimeId)
+        .setWindowID(windowId)
+        .setHtmlFramePath(framePath)
+        .setObjectID(runtimeId * 10)
+        .setUri("http://localhost/")
+        .build();
+  }
+
+  @Test
+  public void testLookupByFrame() {
+    RuntimeRegistry registry = new RuntimeRegistry();
+    registry.put(runtime(1, 1, "_top"));
+    registry.put(runtime(2, 1, "_top/[1]"));
+    registry.put(runtime(3, 2, "_top"));
+
+    assertEquals(1, registry.get(1, "_top").getRuntimeID());
+    assertEquals(2, registry.get(1, "_top/[1]").getRuntimeID());
+    assertEquals(3, registry.get(2, "_top").getRuntimeID());
+    assertNull(registry.get(2, "_top/[1]"));
+    assertEquals(2, registry.getRuntimes(1).size());
+  }
+
+  @Test
+  public void testNewRuntimeReplacesFrame() {
+    RuntimeRegistry registry = new RuntimeRegistry();
+    assertNull(registry.put(runtime(1, 1, "_top")));
+    assertEquals(Integer.valueOf(1), registry.put(runtime(4, 1, "_top")));
+
+    assertEquals(4, registry.get(1, "_top").getRuntimeID());
+    assertFalse(registry.contains(1));
+
+    // Removing the replaced runtime must not drop its successor
+    assertNull(registry.remove(1));
+    assertEquals(4, registry.get(1, "_top").getRuntimeID());
+  }
+
+  @Test
+  public void testRemoveWindow() {
+    RuntimeRegistry registry = new RuntimeRegistry();
+    registry.putAll(Arrays.asList(runtime(1, 1, "_top"), runtime(2, 1, "_top/[1]"),
+                                  runtime(3, 2, "_top")));
+
+    assertEquals(2, registry.removeWindow(1).size());
+    assertNull(registry.get(1, "_top"));
+    assertNull(registry.get(2));
+    assertEquals(3, registry.get(2, "_top").getRuntimeID());
+  }
+
+  @Test
+  public void testChildren() {
+    RuntimeRegistry registry = new RuntimeRegistry();
+    registry.put(runtime(1, 1, "_top"));
+    registry.put(runtime(2, 1, "_top/a[1]"));
+    registry.put(runtime(3, 1, "_top/[2]"));
+    registry.put(runtime(4, 1, "_top/a[1]/b[1]"));
+
+    assertEquals(Arrays.asList(1, 2),
+                 new ArrayList<Integer>(registry.getChildren(1, "_top").keySet()));
+    assertEquals(3, registry.getChild(1, "_top", 2).getRuntimeID());
+    assertEquals(4, registry.getChild(1, "_top/a[1]", 1).getRuntimeID());
+    assertTrue(registry.getChildren(1, "_top/[2]").isEmpty());
+
+    registry.put(runtime(5, 1, "_top/a[1]"));
+    assertEquals(5, registry.getChild(1, "_top", 1).getRuntimeID());
+
+    registry.remove(3);
+    assertNull(registry.getChild(1, "_top", 2));
+  }
+
+  @Test
+  public void testFramePath() {
+    assertNull(RuntimeRegistry.getParentPath("_top"));
+    assertEquals("_top/[1]", RuntimeRegistry.getParentPath("_top/[1]/foo[2]"));
+    assertEquals(2, RuntimeRegistry.getFrameIndex("_top/[1]/foo[2]"));
+    assertEquals("foo", RuntimeRegistry.getFrameName("_top/[1]/foo[2]"));
+    assertEquals("", RuntimeRegistry.getFrameName("_top/[1]"));
+  }
+
+  @Test
+  public void testPending() {
+    RuntimeRegistry registry = new RuntimeRegistry();
+    assertFalse(registry.hasPending());
+
+    registry.addPending(5);
+    registry.addPending(6);
+    assertTrue(registry.hasPending());
+    assertEquals(Arrays.asList(5, 6), registry.drainPending());
+    assertFalse(registry.hasPending());
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.model.Canvas;
+import com.opera.core.systems.model.ScreenShotReply;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ScreenshotCacheTest extends TestCase {
+
+  /**
+   * Pretends to be Opera showing one image, which it only sends when its hash is not known.
+   */
+  private static class FakeSource implements ScreenshotCache.Source {
+
+    private String md5;
+    private byte[] png;
+    private final List<List<String>> requests = new ArrayList<List<String>>();
+
+    public FakeSource(String md5, byte[] png) {
+      show(md5, png);
+    }
+
+    public void show(String md5, byte[] png) {
+      this.md5 = md5;
+      this.png = png;
+    }
+
+    public ScreenShotReply take(String... hashes) {
+      requests.add(Arrays.asList(hashes));
+      if (Arrays.asList(hashes).contains(md5)) {
+        return new ScreenShotReply(md5, new byte[0]);
+      }
+      return new ScreenShotReply(md5, png.clone());
+    }
+
+  }
+
+  @Test
+  public void testServesKnownImageLocally() {
+    ScreenshotCache cache = new ScreenshotCache();
+    FakeSource source = new FakeSource("a", new byte[]{1, 2, 3});
+
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3}, cache.take("area", source).getPng()));
+    ScreenShotReply reply = cache.take("area", source);
+
+    assertEquals(Arrays.asList("a"), source.requests.get(1));
+    assertEquals("a", reply.getMd5());
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3}, reply.getPng()));
+  }
+
+  @Test
+  public void testCallerHashesStillSkipImage() {
+    ScreenshotCache cache = new ScreenshotCache();
+    FakeSource source = new FakeSource("a", new byte[]{1, 2, 3});
+
+    cache.take("area", source);
+    ScreenShotReply reply = cache.take("area", source, "a");
+
+    assertEquals(0, reply.getPng().length);
+  }
+
+  @Test
+  public void testHashesAreKeptPerArea() {
+    ScreenshotCache cache = new ScreenshotCache();
+    cache.put(new Canvas(0, 0, 10, 10), "a", new byte[]{1});
+    cache.put(new Canvas(10, 0, 10, 10), "b", new byte[]{2});
+
+    assertEquals(Arrays.asList("x", "a"),
+                 Arrays.asList(cache.getKnownHashes(new Canvas(0, 0, 10, 10), "x")));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    ScreenshotCache cache = new ScreenshotCache(4, 0);
+    cache.put("area", "a", new byte[]{1, 1});
+    cache.put("area", "b", new byte[]{2, 2});
+    cache.get("area", "a");
+    cache.put("area", "c", new byte[]{3, 3});
+
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get("area", "a"));
+    assertNull(cache.get("area", "b"));
+    assertEquals(4, cache.getMemoryUsed());
+  }
+
+  @Test
+  public void testSpillsToDisk() {
+    ScreenshotCache cache = new ScreenshotCache(2, 4);
+    try {
+      cache.put("area", "a", new byte[]{1, 1});
+      cache.put("area", "b", new byte[]{2, 2});
+
+      assertEquals(2, cache.getMemoryUsed());
+      assertEquals(2, cache.getDiskUsed());
+      assertTrue(Arrays.equals(new byte[]{1, 1}, cache.get("area", "a")));
+      assertEquals(2, cache.getDiskUsed());
+      assertEquals(2, cache.size());
+    } finally {
+      cache.clear();
+    }
+  }
+
+  @Test
+  public void testRefetchesWhenImageIsGone() {
+    final ScreenshotCache cache = new ScreenshotCache(2, 0);
+    final FakeSource source = new FakeSource("a", new byte[]{1, 1});
+    cache.take("area", source);
+
+    // Pushes "a" out of the cache after its hash has been sent
+    ScreenshotCache.Source evicting = new ScreenshotCache.Source() {
+      public ScreenShotReply take(String... hashes) {
+        cache.put("other", "b", new byte[]{2, 2});
+        return source.take(hashes);
+      }
+    };
+
+    ScreenShotReply reply = cache.take("area", evicting);
+    assertEquals(Arrays.asList("a"), source.requests.get(1));
+    assertEquals(Arrays.<String>asList(), source.requests.get(2));
+    assertTrue(Arrays.equals(new byte[]{1, 1}, reply.getPng()));
+  }
+
+}
@@ -0,0 +1,135 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.google.protobuf.ByteString;
+import com.opera.core.systems.scope.protos.UmsProtos.Response;
+import com.opera.core.systems.scope.stp.StpFrameDecoder;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class StpFrameDecoderTest extends TestCase {
+
+  private Response response(int tag, int payloadSize) {
+    return Response.newBuilder()
+        .setService("ecmascript")
+        .setCommandID(1)
+        .setFormat(0)
+        .setTag(tag)
+        .setPayload(ByteString.copyFrom(new byte[payloadSize]))
+        .build();
+  }
+
+  @Test
+  public void testPeekVarintIncomplete() throws Exception {
+    StpFrameDecoder decoder = new StpFrameDecoder(16);
+    decoder.write(ByteBuffer.wrap(new byte[]{(byte) 0xac}));
+    assertEquals(-1, decoder.peekVarint32(0));
+
+    decoder.write(ByteBuffer.wrap(new byte[]{0x02}));
+    assertEquals(300, decoder.peekVarint32(0));
+    assertEquals(2, decoder.getLastVarintSize());
+    assertEquals(2, decoder.available());
+  }
+
+  @Test
+  public void testPeekMessageSize() throws Exception {
+    StpFrameDecoder decoder = new StpFrameDecoder(16);
+    assertEquals(-1, decoder.peekMessageSize());
+
+    decoder.write(ByteBuffer.wrap(new byte[]{(byte) 0xac}));
+    assertEquals(-1, decoder.peekMessageSize());
+
+    decoder.write(ByteBuffer.wrap(new byte[]{0x02}));
+    assertEquals(300, decoder.peekMessageSize());
+  }
+
+  @Test
+  public void testRejectsEmptyMessage() {
+    StpFrameDecoder decoder = new StpFrameDecoder(16);
+    decoder.write(ByteBuffer.wrap(new byte[]{0x00}));
+
+    try {
+      decoder.peekMessageSize();
+      fail("Expected an IOException for a message of size 0");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testRejectsNegativeMessageSize() {
+    StpFrameDecoder decoder = new StpFrameDecoder(16);
+    decoder.write(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                                             0x0f}));
+
+    try {
+      decoder.peekMessageSize();
+      fail("Expected an IOException for a message size over 2^31");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSliceWrappingAroundTheRing() throws Exception {
+    StpFrameDecoder decoder = new StpFrameDecoder(64);
+    byte[] message = response(7, 20).toByteArray();
+
+    // Move the read position close to the end of the ring
+    decoder.write(ByteBuffer.wrap(new byte[50]));
+    decoder.skip(45);
+
+    decoder.write(ByteBuffer.wrap(message));
+    assertEquals(64, decoder.capacity());
+
+    Response parsed = Response.parseFrom(decoder.slice(5, message.length));
+    assertEquals(7, parsed.getTag());
+    assertEquals(20, parsed.getPayload().size());
+  }
+
+  @Test
+  public void testGrowsForLargeFrames() throws Exception {
+    StpFrameDecoder decoder = new StpFrameDecoder(32);
+    byte[] message = response(42, 100).toByteArray();
+
+    decoder.write(ByteBuffer.wrap(message));
+    assertTrue(decoder.capacity() >= message.length);
+
+    Response parsed = Response.parseFrom(decoder.slice(0, message.length));
+    assertEquals(42, parsed.getTag());
+
+    decoder.skip(message.length);
+    assertEquals(0, decoder.available());
+  }
+
+  @Test
+  public void testStartsWith() {
+    StpFrameDecoder decoder = new StpFrameDecoder();
+    decoder.write(ByteBuffer.wrap(new byte[]{'S', 'T', 'P'}));
+    assertFalse(decoder.startsWith(new byte[]{'S', 'T', 'P', 1}));
+
+    decoder.write(ByteBuffer.wrap(new byte[]{1}));
+    assertTrue(decoder.startsWith(new byte[]{'S', 'T', 'P', 1}));
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+Copyright 2011 Opera Software ASA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.opera.core.systems;
+
+import com.opera.core.systems.scope.exceptions.ResponseNotReceivedException;
+import com.opera.core.systems.scope.protos.EcmascriptProtos.ReadyStateChange;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class WaitStateTest extends TestCase {
+
+  private WaitState waitState;
+
+  // The windows of the documents, as the locator tells them
+  private final Map<Integer, Integer> windows = new HashMap<Integer, Integer>();
+
+  private final WaitState.DocumentLocator locator = new WaitState.DocumentLocator() {
+    public Integer getWindowId(int runtimeId) {
+      return windows.get(runtimeId);
+    }
+  };
+
+  @Override
+  protected void setUp() {
+    waitState = new WaitState();
+  }
+
+  private void createDocument(int runtimeId, int windowId) {
+    windows.put(runtimeId, windowId);
+    waitState.onReadyStateChanged(runtimeId, ReadyStateChange.State.DOM_ENVIRONMENT_CREATED);
+  }
+
+  private boolean waitForPageLoad(int windowId, long timeout) {
+    return waitState.waitForPageLoad(windowId, 5, timeout, locator);
+  }
+
+  @Test
+  public void testPageLoadWithoutDocuments() {
+    assertTrue(waitForPageLoad(1, 1000));
+  }
+
+  @Test
+  public void testPageLoadTimesOut() {
+    createDocument(1, 1);
+    assertFalse(waitForPageLoad(1, 50));
+  }
+
+  @Test
+  public void testPageLoadAfterOnload() {
+    createDocument(1, 1);
+    waitState.onReadyStateChanged(1, ReadyStateChange.State.DOM_CONTENT_LOADED);
+    waitState.onReadyStateChanged(1, ReadyStateChange.State.AFTER_ONLOAD);
+    assertTrue(waitForPageLoad(1, 50));
+  }
+
+  @Test
+  public void testPageLoadIgnoresOtherWindows() {
+    createDocument(1, 1);
+    createDocument(2, 2);
+    assertFalse(waitForPageLoad(1, 50));
+    waitState.onReadyStateChanged(1, ReadyStateChange.State.AFTER_ONLOAD);
+    assertTrue(waitForPageLoad(1, 50));
+    assertFalse(waitForPageLoad(2, 50));
+  }
+
+  @Test
+  public void testPageLoadAfterWindowLoaded() {
+    createDocument(1, 1);
+    createDocument(2, 2);
+    waitForPageLoad(1, 0);
+    waitState.onWindowLoaded(1);
+    assertTrue(waitForPageLoad(1, 50));
+    assertFalse(waitForPageLoad(2, 50));
+  }
+
+  @Test
+  public void testPageLoadAfterWindowLoadedBeforePlacing() {
+    createDocument(1, 1);
+    waitState.onWindowLoaded(1);
+    assertTrue(waitForPageLoad(1, 50));
+  }
+
+  @Test
+  public void testPageLoadOfDocumentCreatedAfterWindowLoaded() {
+    waitState.onWindowLoaded(1);
+    createDocument(1, 1);
+    assertFalse(waitForPageLoad(1, 50));
+  }
+
+  @Test
+  public void testPageLoadAfterWindowClosed() {
+    createDocument(1, 1);
+    createDocument(2, 2);
+    waitState.onWindowClosed(2);
+    assertTrue(waitForPageLoad(2, 50));
+    assertFalse(waitForPageLoad(1, 50));
+  }
+
+  @Test
+  public void testPageLoadOfGoneDocument() {
+    waitState.onReadyStateChanged(1, ReadyStateChange.State.DOM_ENVIRONMENT_CREATED);
+    assertTrue(waitForPageLoad(1, 50));
+  }
+
+  @Test
+  public void testPageLoadWakesUpOnEvent() throws InterruptedException {
+    createDocument(1, 1);
+
+    Thread loader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        waitState.onReadyStateChanged(1, ReadyStateChange.State.AFTER_ONLOAD);
+      }
+    };
+    loader.start();
+
+    long start = System.currentTimeMillis();
+    assertTrue(waitForPageLoad(1, 10000));
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    loader.join();
+  }
+
+  @Test
+  public void testOldWindowLoadedIsDropped() {
+    waitState.onWindowLoaded(1);
+    waitState.captureOperaIdle();
+
+    try {
+      waitState.waitForWindowLoaded(1, 50);
+      fail("A window loaded before the wait was set up should not end it");
+    } catch (ResponseNotReceivedException e) {
+      // expected
+    }
+
+    waitState.onWindowLoaded(1);
+    waitState.waitForWindowLoaded(1, 50);
+  }
+
+  @Test
+  public void testOldOperaIdleIsDropped() {
+    waitState.onOperaIdle();
+    waitState.captureOperaIdle();
+
+    try {
+      waitState.waitForOperaIdle(50);
+      fail("An idle event received before the wait was set up should not end it");
+    } catch (ResponseNotReceivedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testScriptSignal() {
+    waitState.expectScriptSignal("1");
+    waitState.onScriptSignal("1");
+    assertTrue(waitState.waitForScriptSignal("1", 50));
+  }
+
+  @Test
+  public void testScriptSignalTimesOut() {
+    waitState.expectScriptSignal("1");
+    waitState.onScriptSignal("2");
+    assertFalse(waitState.waitForScriptSignal("1", 50));
+  }
+
+  @Test
+  public void testUnexpectedScriptSignalIsIgnored() {
+    waitState.onScriptSignal("1");
+    waitState.expectScriptSignal("1");
+    assertFalse(waitState.waitForScriptSignal("1", 50));
+  }
+
+}